@@ -1,114 +1,169 @@
-package com.brwsoftware.brwx12library;
-
-public final class ISASegment {
-	private char[] data;
-	public static final int ISA_LENGTH = 106;
-
-	public ISASegment(char[] theSegment) throws X12Exception {
-		if (theSegment.length != ISA_LENGTH) {
-			throw new X12Exception("Invalid ISA length");
-		}
-
-		//Test for ISA tag
-		if (theSegment[0] != 'I' || theSegment[1] != 'S'
-				|| theSegment[2] != 'A') {
-			throw new X12Exception("Invalid ISA tag");
-		}
-
-		//Test element separators
-		char eleSep = theSegment[3];
-		if (eleSep != theSegment[6] || eleSep != theSegment[17]
-				|| eleSep != theSegment[20] || eleSep != theSegment[31]
-				|| eleSep != theSegment[34] || eleSep != theSegment[50]
-				|| eleSep != theSegment[53] || eleSep != theSegment[69]
-				|| eleSep != theSegment[76] || eleSep != theSegment[81]
-				|| eleSep != theSegment[83] || eleSep != theSegment[89]
-				|| eleSep != theSegment[99] || eleSep != theSegment[101]
-				|| eleSep != theSegment[103]) {
-			throw new X12Exception("Invalid ISA element separators");
-		}
-		
-		//Valid ISA
-		data = theSegment;
-	}
-
-	public String toString() {
-		return new String(data);
-	}
-	
-	public char getElementSeparator() {
-		return data[3];
-	}
-
-	public char getComponementSeparator() {
-		return data[104];
-	}
-
-	public char getSegmentSeparator() {
-		return data[105];
-	}
-
-	public String getName() {
-		return new String(data, 0, 3);
-	}
-
-	public String getAuthorInfoQualifier() {
-		return new String(data, 4, 2);
-	}
-
-	public String getAuthorInformation() {
-		return new String(data, 7, 10);
-	}
-
-	public String getSecurityInfoQualifier() {
-		return new String(data, 18, 2);
-	}
-
-	public String getSecurityInformation() {
-		return new String(data, 21, 10);
-	}
-
-	public String getInterchangeSenderIDQualifier() {
-		return new String(data, 32, 2);
-	}
-
-	public String getInterchangeSenderID() {
-		return new String(data, 35, 15);
-	}
-
-	public String getInterchangeReceiverIDQualifier() {
-		return new String(data, 51, 2);
-	}
-
-	public String getInterchangeReceiverID() {
-		return new String(data, 54, 15);
-	}
-
-	public String getInterchangeDate() {
-		return new String(data, 70, 6);
-	}
-
-	public String getInterchangeTime() {
-		return new String(data, 77, 4);
-	}
-
-	public char getRepetitionSeparator() {
-		return data[82];
-	}
-
-	public String getInterchangeControlVersionNumber() {
-		return new String(data, 84, 5);
-	}
-
-	public String getInterchangeControlNumber() {
-		return new String(data, 90, 9);
-	}
-
-	public char getAckRequest() {
-		return data[100];
-	}
-
-	public char getUsageIndcator() {
-		return data[102];
-	}
-}
+package com.brwsoftware.brwx12library;
+
+import java.util.Arrays;
+
+public final class ISASegment {
+	private char[] data;
+	public static final int ISA_LENGTH = 106;
+
+	public ISASegment(char[] theSegment) throws X12Exception {
+		if (theSegment.length != ISA_LENGTH) {
+			throw new X12Exception("Invalid ISA length");
+		}
+
+		//Test for ISA tag
+		if (theSegment[0] != 'I' || theSegment[1] != 'S'
+				|| theSegment[2] != 'A') {
+			throw new X12Exception("Invalid ISA tag");
+		}
+
+		//Test element separators
+		char eleSep = theSegment[3];
+		if (eleSep != theSegment[6] || eleSep != theSegment[17]
+				|| eleSep != theSegment[20] || eleSep != theSegment[31]
+				|| eleSep != theSegment[34] || eleSep != theSegment[50]
+				|| eleSep != theSegment[53] || eleSep != theSegment[69]
+				|| eleSep != theSegment[76] || eleSep != theSegment[81]
+				|| eleSep != theSegment[83] || eleSep != theSegment[89]
+				|| eleSep != theSegment[99] || eleSep != theSegment[101]
+				|| eleSep != theSegment[103]) {
+			throw new X12Exception("Invalid ISA element separators");
+		}
+		
+		//Valid ISA
+		data = theSegment;
+	}
+
+	public String toString() {
+		return new String(data);
+	}
+	
+	public char getElementSeparator() {
+		return data[3];
+	}
+
+	public char getComponementSeparator() {
+		return data[104];
+	}
+
+	public char getSegmentSeparator() {
+		return data[105];
+	}
+
+	public String getName() {
+		return new String(data, 0, 3);
+	}
+
+	public String getAuthorInfoQualifier() {
+		return new String(data, 4, 2);
+	}
+
+	public String getAuthorInformation() {
+		return new String(data, 7, 10);
+	}
+
+	public String getSecurityInfoQualifier() {
+		return new String(data, 18, 2);
+	}
+
+	public String getSecurityInformation() {
+		return new String(data, 21, 10);
+	}
+
+	public String getInterchangeSenderIDQualifier() {
+		return new String(data, 32, 2);
+	}
+
+	public String getInterchangeSenderID() {
+		return new String(data, 35, 15);
+	}
+
+	public String getInterchangeReceiverIDQualifier() {
+		return new String(data, 51, 2);
+	}
+
+	public String getInterchangeReceiverID() {
+		return new String(data, 54, 15);
+	}
+
+	public String getInterchangeDate() {
+		return new String(data, 70, 6);
+	}
+
+	public String getInterchangeTime() {
+		return new String(data, 77, 4);
+	}
+
+	public char getRepetitionSeparator() {
+		return data[82];
+	}
+
+	public boolean hasRepetitionSeparator() {
+		// ISA11 is only a repetition separator (5010 and later) when it is
+		// not the older standards identifier (e.g. 'U')
+		char repSep = data[82];
+		return !(Character.isLetterOrDigit(repSep) || repSep == getElementSeparator()
+				|| repSep == getComponementSeparator());
+	}
+
+	public X12Segment toSegment() throws X12Exception {
+		return new X12Segment(Arrays.copyOf(data, data.length), getElementSeparator(), getSegmentSeparator(),
+				getComponementSeparator(), hasRepetitionSeparator() ? getRepetitionSeparator() : 0);
+	}
+
+	void fill(X12Segment theSegment) throws X12Exception {
+		theSegment.set(data, data.length, getElementSeparator(), getSegmentSeparator(), getComponementSeparator(),
+				hasRepetitionSeparator() ? getRepetitionSeparator() : 0);
+	}
+
+	public String getInterchangeControlVersionNumber() {
+		return new String(data, 84, 5);
+	}
+
+	public String getInterchangeControlNumber() {
+		return new String(data, 90, 9);
+	}
+
+	public int getInterchangeControlNumberAsInt() {
+		// -1 when ISA13 is not all digits
+		return parseDigits(90, 9);
+	}
+
+	public int getInterchangeDateAsInt() {
+		// ISA09 (YYMMDD) as a CCYYMMDD int, -1 when not a valid date
+		int value = parseDigits(70, 6);
+		if (value < 0) {
+			return -1;
+		}
+		return X12Segment.makeDate(X12Segment.expandYear(value / 10000), (value / 100) % 100, value % 100);
+	}
+
+	public int getInterchangeTimeAsInt() {
+		// ISA10 (HHMM) as an int, -1 when not a valid time
+		int value = parseDigits(77, 4);
+		if (value < 0 || value / 100 > 23 || value % 100 > 59) {
+			return -1;
+		}
+		return value;
+	}
+
+	private int parseDigits(int offset, int length) {
+		int value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int digit = data[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	public char getAckRequest() {
+		return data[100];
+	}
+
+	public char getUsageIndcator() {
+		return data[102];
+	}
+}
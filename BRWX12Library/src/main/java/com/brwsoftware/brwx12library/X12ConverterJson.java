@@ -0,0 +1,432 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class X12ConverterJson {
+
+/*
+	Same structure as X12ConverterXml (generic, or with loops when given an
+	X12Schema) written straight out as UTF-8 JSON in one pass. Every XML
+	element becomes an object with a single member named after it, and the
+	children of the containers are kept in order in a "content" array:
+
+	{"X12":{"content":[{"InterchangeControl":{"content":[
+		{"ISA":{"ISA01":"00",...}},
+		{"FunctionalGroup":{"content":[{"GS":{...}},
+			{"TransactionSet":{"id":"837","content":[{"ST":{...}},
+				{"Loop":{"id":"1000A","content":[{"NM1":{...}},...]}},
+				...
+
+	Components are an object of their own ({"CLM05":{"CLM05-01":"11",...}}).
+
+	The compact form has no whitespace and writes the repetitions of a loop
+	together - the loop ID is the member name and each repetition is an
+	array of its content:
+
+	{"2400":[[{"LX":{...}},{"SV1":{...}}],[{"LX":{...}},{"SV1":{...}}]]}
+*/
+	private final boolean compact;
+
+	public X12ConverterJson() {
+		this(false);
+	}
+
+	public X12ConverterJson(boolean compact) {
+		this.compact = compact;
+	}
+
+	private static final class JsonHandler implements X12Handler {
+		// IOExceptions are passed through an X12Exception (see unwrap)
+		private static final int INDENT = 2;
+
+		private final Writer out;
+		private final boolean compact;
+		private final X12SegmentNames.Table segmentNames = new X12SegmentNames.Table();
+		private final char[] buf = new char[8 * 1024];
+		private int count;
+		// Closing bracket of each open object and array
+		private char[] closers = new char[32];
+		private int depth;
+		// Nothing written yet in the current object or array
+		private boolean first = true;
+		// IDs of the open loops (compact only)
+		private String[] loopIDs = new String[16];
+		private int loopDepth;
+		// Compact only - the repetitions of this loop are still open, it ended
+		// but the next one may repeat it
+		private String endedLoopID;
+		// A new line followed by the indent of the deepest level so far
+		private char[] newLine = { '\n' };
+
+		private JsonHandler(Writer out, boolean compact) {
+			this.out = out;
+			this.compact = compact;
+		}
+
+		void startDocument() throws X12Exception {
+			open('{');
+			name("X12");
+			startContent(null);
+		}
+
+		void endDocument() throws X12Exception {
+			// Anything left open by a missing trailer is closed as well
+			endRepetitions();
+			while (depth > 0) {
+				close();
+			}
+			if (!compact) {
+				write('\n');
+			}
+			flush();
+		}
+
+		void flush() throws X12Exception {
+			try {
+				out.write(buf, 0, count);
+				out.flush();
+				count = 0;
+			} catch (IOException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		public void startInterchange(X12Segment theISA) throws X12Exception {
+			startNode("InterchangeControl", null);
+			segment(theISA);
+		}
+
+		public void endInterchange(X12Segment theIEA) throws X12Exception {
+			endNode(theIEA);
+		}
+
+		public void startGroup(X12Segment theGS) throws X12Exception {
+			startNode("FunctionalGroup", null);
+			segment(theGS);
+		}
+
+		public void endGroup(X12Segment theGE) throws X12Exception {
+			endNode(theGE);
+		}
+
+		public void startTransactionSet(X12Segment theST) throws X12Exception {
+			startNode("TransactionSet", theST.getElement(1));
+			segment(theST);
+		}
+
+		public void endTransactionSet(X12Segment theSE) throws X12Exception {
+			endNode(theSE);
+		}
+
+		public void startLoop(String loopID) throws X12Exception {
+			if (!compact) {
+				startNode("Loop", loopID);
+				return;
+			}
+
+			if (endedLoopID != null) {
+				if (endedLoopID.equals(loopID)) {
+					// Another repetition
+					endedLoopID = null;
+					item();
+					open('[');
+					pushLoopID(loopID);
+					return;
+				}
+				endRepetitions();
+			}
+			item();
+			open('{');
+			name(loopID);
+			open('[');
+			item();
+			open('[');
+			pushLoopID(loopID);
+		}
+
+		public void endLoop() throws X12Exception {
+			if (!compact) {
+				endNode();
+				return;
+			}
+
+			endRepetitions();
+			close();
+			endedLoopID = loopIDs[--loopDepth];
+		}
+
+		public void segment(X12Segment theSegment) throws X12Exception {
+			endRepetitions();
+
+			X12SegmentNames names = segmentNames.get(theSegment);
+			item();
+			open('{');
+			name(names.getSegmentName(theSegment));
+			open('{');
+			for (int i = 1; i < theSegment.getElementCount(); i++) {
+				name(names.getElementName(i));
+				if (hasSubElements(theSegment, i)) {
+					open('{');
+					createSubElements(theSegment, i, names);
+					close();
+				} else {
+					string(theSegment.getElementView(i));
+				}
+			}
+			close();
+			close();
+		}
+
+		private boolean hasSubElements(X12Segment theSegment, int index) {
+			// Do not consider the ISA element
+			return (!theSegment.isTag(X12Tag.ISA) && theSegment.getComponentCount(index) > 1);
+		}
+
+		private void createSubElements(X12Segment theSegment, int index, X12SegmentNames names)
+				throws X12Exception {
+			// Trailing empty components are dropped (same as X12ConverterXml)
+			int count = theSegment.getComponentCount(index);
+			while (count > 0 && theSegment.getComponentLength(index, count - 1) == 0) {
+				count--;
+			}
+
+			for (int i = 0; i < count; i++) {
+				name(names.getComponentName(index, i + 1));
+				string(theSegment.getComponent(index, i));
+			}
+		}
+
+		private void pushLoopID(String loopID) {
+			if (loopDepth == loopIDs.length) {
+				String[] theIDs = new String[loopDepth << 1];
+				System.arraycopy(loopIDs, 0, theIDs, 0, loopDepth);
+				loopIDs = theIDs;
+			}
+			loopIDs[loopDepth++] = loopID;
+		}
+
+		private void endRepetitions() throws X12Exception {
+			// Close the repetitions of the loop that ended last
+			if (endedLoopID != null) {
+				endedLoopID = null;
+				close();
+				close();
+			}
+		}
+
+		private void startNode(String name, String id) throws X12Exception {
+			endRepetitions();
+			item();
+			open('{');
+			name(name);
+			startContent(id);
+		}
+
+		private void endNode(X12Segment theTrailer) throws X12Exception {
+			// The trailer (if any) is the last item of the content
+			if (theTrailer != null) {
+				segment(theTrailer);
+			}
+			endNode();
+		}
+
+		private void endNode() throws X12Exception {
+			endRepetitions();
+			endContent();
+			close();
+		}
+
+		private void startContent(String id) throws X12Exception {
+			open('{');
+			if (id != null) {
+				name("id");
+				string(id);
+			}
+			name("content");
+			open('[');
+		}
+
+		private void endContent() throws X12Exception {
+			close();
+			close();
+		}
+
+		private void item() throws X12Exception {
+			// Separator and indent before a value in an array or a member
+			if (!first) {
+				write(',');
+			}
+			first = false;
+			if (!compact) {
+				newLine();
+			}
+		}
+
+		private void name(String name) throws X12Exception {
+			item();
+			string(name);
+			write(':');
+			if (!compact) {
+				write(' ');
+			}
+		}
+
+		private void open(char c) throws X12Exception {
+			write(c);
+			if (depth == closers.length) {
+				char[] theClosers = new char[depth << 1];
+				System.arraycopy(closers, 0, theClosers, 0, depth);
+				closers = theClosers;
+			}
+			closers[depth++] = (c == '{') ? '}' : ']';
+			first = true;
+		}
+
+		private void close() throws X12Exception {
+			depth--;
+			if (!first && !compact) {
+				newLine();
+			}
+			write(closers[depth]);
+			first = false;
+		}
+
+		private void newLine() throws X12Exception {
+			int length = 1 + depth * INDENT;
+			if (length > newLine.length) {
+				newLine = new char[length + 16 * INDENT];
+				newLine[0] = '\n';
+				Arrays.fill(newLine, 1, newLine.length, ' ');
+			}
+			write(newLine, length);
+		}
+
+		private void string(CharSequence value) throws X12Exception {
+			write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+				case '"':
+					write('\\');
+					write('"');
+					break;
+				case '\\':
+					write('\\');
+					write('\\');
+					break;
+				case '\n':
+					write('\\');
+					write('n');
+					break;
+				case '\r':
+					write('\\');
+					write('r');
+					break;
+				case '\t':
+					write('\\');
+					write('t');
+					break;
+				default:
+					if (c < 0x20) {
+						write("\\u00");
+						write(Character.forDigit(c >> 4, 16));
+						write(Character.forDigit(c & 0xF, 16));
+					} else {
+						write(c);
+					}
+					break;
+				}
+			}
+			write('"');
+		}
+
+		private void write(String s) throws X12Exception {
+			for (int i = 0; i < s.length(); i++) {
+				write(s.charAt(i));
+			}
+		}
+
+		private void write(char[] chars, int length) throws X12Exception {
+			if (count + length > buf.length) {
+				for (int i = 0; i < length; i++) {
+					write(chars[i]);
+				}
+				return;
+			}
+			System.arraycopy(chars, 0, buf, count, length);
+			count += length;
+		}
+
+		private void write(char c) throws X12Exception {
+			if (count == buf.length) {
+				try {
+					out.write(buf, 0, count);
+				} catch (IOException e) {
+					throw new X12Exception(e);
+				}
+				count = 0;
+			}
+			buf[count++] = c;
+		}
+	}
+
+	private static IOException unwrap(X12Exception e) throws X12Exception {
+		// JsonHandler can only throw X12Exception
+		if (e.getCause() instanceof IOException) {
+			return (IOException) e.getCause();
+		}
+		throw e;
+	}
+
+	public void convert(InputStream input, OutputStream output) throws IOException, X12Exception {
+		convert(input, output, null, Charset.defaultCharset());
+	}
+
+	public void convert(InputStream input, OutputStream output, Charset charset) throws IOException, X12Exception {
+		convert(input, output, null, charset);
+	}
+
+	public void convert(InputStream input, OutputStream output, X12Schema x12Schema)
+			throws IOException, X12Exception {
+		convert(input, output, x12Schema, Charset.defaultCharset());
+	}
+
+	public void convert(InputStream input, OutputStream output, X12Schema x12Schema, Charset charset)
+			throws IOException, X12Exception {
+		JsonHandler theHandler = new JsonHandler(new OutputStreamWriter(output, StandardCharsets.UTF_8), compact);
+		X12LoopParser theParser = new X12LoopParser(theHandler, x12Schema);
+
+		// Create the X12Reader
+		X12Reader theReader = new X12Reader(input, charset);
+
+		// Read ISA record
+		ISASegment theISA = theReader.readISA();
+
+		try {
+			theHandler.startDocument();
+
+			// Process ISA
+			theParser.interchange(theISA);
+
+			// Process segments
+			// Note: the same segment object is refilled for every read
+			X12Segment theSegment = theReader.readSegment(new X12Segment());
+			while (theSegment != null) {
+				theParser.segment(theSegment);
+
+				theSegment = theReader.readSegment(theSegment);
+			}
+
+			theHandler.endDocument();
+		} catch (X12Exception e) {
+			throw unwrap(e);
+		}
+	}
+}
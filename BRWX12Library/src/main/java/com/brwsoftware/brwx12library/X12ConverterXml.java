@@ -1,830 +1,496 @@
-package com.brwsoftware.brwx12library;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-
-public class X12ConverterXml {
-
-	private static final int HDR_STATE_NONE = 0;
-	private static final int HDR_STATE_ISA = 1;
-	private static final int HDR_STATE_GS = 2;
-	private static final int HDR_STATE_ST = 4;
-
-	public X12ConverterXml() {
-		schemaLoopStack = new X12ConverterXml.SchemaLoopStack();
-		xmlNodeStack = new X12ConverterXml.XmlNodeStack();
-	}
-
-	private final class SchemaLoopStack {
-		public SchemaLoopStack() {
-			stack = new LinkedList<Item>();
-		}
-
-		private final class Item {
-			public Item() {
-				childLoopCountMap = new HashMap<Integer, Integer>();
-			}
-
-			private Item parent;
-			private X12Schema.Loop loop;
-			private int count;
-			private String hlId;
-			private String parentHlId;
-			private HashMap<Integer, Integer> childLoopCountMap;
-
-			public Item getParentItem() {
-				return parent;
-			}
-
-			public void setParentItem(Item parent) {
-				this.parent = parent;
-			}
-
-			public X12Schema.Loop getLoop() {
-				return loop;
-			}
-
-			public void setLoop(X12Schema.Loop loop) {
-				this.loop = loop;
-			}
-
-			public int getCount() {
-				return count;
-			}
-
-			public int incrementCount() {
-				return count++;
-			}
-
-			@SuppressWarnings("unused")
-			public String getHLID() {
-				return hlId;
-			}
-
-			public boolean hasHLID() {
-				return (hlId != null && hlId.length() != 0);
-			}
-
-			public String getParentHLID() {
-				return parentHlId;
-			}
-
-			void setHLID(X12Segment seg) {
-				if (isSegmentHL(seg)) {
-					if (seg.getElementCount() > 1) {
-						hlId = seg.getElement(1);
-					}
-
-					if (seg.getElementCount() > 2) {
-						parentHlId = seg.getElement(2);
-					} else {
-						parentHlId = "0";
-					}
-				}
-			}
-
-			int getChildLoopCount(int childLoopIndex) {
-				int count = 0;
-				if (childLoopCountMap.containsKey(childLoopIndex)) {
-					count = childLoopCountMap.get(childLoopIndex);
-				}
-				return count;
-			}
-
-			void incrementChildLoopCount(int childLoopIndex) {
-				if (childLoopIndex >= 0) {
-					int count = getChildLoopCount(childLoopIndex) + 1;
-					childLoopCountMap.put(childLoopIndex, count);
-				}
-			}
-
-			void resetChildLoopCounters() {
-				childLoopCountMap.clear();
-			}
-		}
-
-		private Deque<Item> stack;
-
-		public boolean isEmpty() {
-			return stack.isEmpty();
-		}
-
-		public void clear() {
-			stack.clear();
-		}
-
-		Item current() {
-			if (stack.isEmpty())
-				return null;
-			return stack.getLast();
-		}
-
-		Item push(X12Schema.Loop loop, X12Segment seg) {
-			Item item = new Item();
-			item.setLoop(loop);
-			item.incrementCount();
-
-			if (!stack.isEmpty()) {
-				item.setParentItem(current());
-			}
-
-			if (seg != null && isSegmentHL(seg)) {
-				item.setHLID(seg);
-			}
-
-			stack.addLast(item);
-
-			return item;
-		}
-
-		Item pop() {
-			return stack.removeLast();
-		}
-	}
-
-	private final class XmlNodeStack {
-		public XmlNodeStack() {
-			stack = new ArrayList<XMLStreamWriter>();
-		}
-
-		private ArrayList<XMLStreamWriter> stack;
-
-		public int push(XMLStreamWriter writer, String name) throws XMLStreamException {
-			stack.add(writer);
-			writer.writeStartElement(name);
-			return stack.size() - 1;
-		}
-
-		public void pop() throws XMLStreamException {
-			if (!stack.isEmpty()) {
-				stack.remove(stack.size() - 1).writeEndElement();
-			}
-		}
-
-		public void popUntil(int pos) throws XMLStreamException {
-			while (!stack.isEmpty()) {
-				if ((stack.size() - 1) == pos) {
-					break;
-				} else {
-					pop();
-				}
-			}
-		}
-
-		@SuppressWarnings("unused")
-		public void popThrough(int pos) throws XMLStreamException {
-			while (!stack.isEmpty()) {
-				if ((stack.size() - 1) == pos) {
-					pop();
-					break;
-				} else {
-					pop();
-				}
-			}
-		}
-
-		boolean isEmpty() {
-			return stack.isEmpty();
-		}
-
-		void clear() {
-			stack.clear();
-		}
-	}
-
-	private X12ConverterXml.SchemaLoopStack schemaLoopStack;
-	private X12ConverterXml.XmlNodeStack xmlNodeStack;
-	private X12Schema.TransactionSet x12SchemaTS;
-	private X12Schema x12Schema;
-	private int positionISA = -1;
-	private int positionGS = -1;
-	private int positionST = -1;
-	private int hdrState = HDR_STATE_NONE;
-	// Note: these were used for error info in the original c++ code
-	@SuppressWarnings("unused")
-	private int segmentCount = 0;
-	@SuppressWarnings("unused")
-	// End note
-	private String currentSegmentID;
-	private char subElementSeparator;
-	private XMLStreamWriter xmlWriter;
-	private XMLOutputFactory xmlOutputFactory;
-
-	private void initializeState() {
-		hdrState = HDR_STATE_NONE;
-		segmentCount = 0;
-		schemaLoopStack.clear();
-		xmlNodeStack.clear();
-		x12SchemaTS = null;
-	}
-
-	private int pushXmlNode(String name) throws XMLStreamException {
-		return xmlNodeStack.push(xmlWriter, name);
-	}
-
-	private void popXmlNode() throws XMLStreamException {
-		xmlNodeStack.pop();
-	}
-
-	private void popXmlNodeUntil(int pos) throws XMLStreamException {
-		xmlNodeStack.popUntil(pos);
-	}
-
-	private boolean isSegment(X12Segment theSegment, String seg) {
-		return ((theSegment.getElementCount() > 0) && theSegment.getElement(0).compareToIgnoreCase(seg) == 0);
-	}
-
-	private boolean isSegmentHL(X12Segment theSegment) {
-		return isSegment(theSegment, "HL");
-	}
-
-	private boolean isValidDetailSegment(X12Segment theSegment) {
-		return true;
-	}
-
-	private boolean isExpectedSegment(X12Segment theSegment) {
-		if (theSegment.getElementCount() == 0) {
-			return false;
-		}
-
-		boolean bReturn = false;
-
-		if ((hdrState & HDR_STATE_ST) == HDR_STATE_ST) {
-			// Must be SE (end of trnx set) or valid detail
-			if (isSegment(theSegment, "SE") || isValidDetailSegment(theSegment)) {
-				bReturn = true;
-			}
-		} else if ((hdrState & HDR_STATE_GS) == HDR_STATE_GS) {
-			// Must be ST (start of trnx set) or GE(end of function group)
-			if (isSegment(theSegment, "ST") || isSegment(theSegment, "GE")) {
-				bReturn = true;
-			}
-		} else if ((hdrState & HDR_STATE_ISA) == HDR_STATE_ISA) {
-			// Must be GS (start of function group) or IEA (end of ISA) or TA1
-			// Note: If TA1, then it should be the lone record between ISA and
-			// IEA
-			if (isSegment(theSegment, "GS") || isSegment(theSegment, "IEA") || isSegment(theSegment, "TA1")) {
-				bReturn = true;
-			}
-		} else if (hdrState == HDR_STATE_NONE) {
-			if (isSegment(theSegment, "ISA")) {
-				return true;
-			}
-		} else {
-			bReturn = false;
-		}
-
-		return bReturn;
-	}
-
-	boolean isLoopHL(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		return isSegmentHL(theSegment);
-	}
-
-	boolean isLoopEnder(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		//Is this segment an ender for the current loop
-		String segID = theSegment.getElement(0);
-		if (loopStackItem.getLoop().hasEndingSegment() && loopStackItem.getLoop().isEndingSegment(segID)) {
-			return true;
-		}
-		return false;
-	}
-
-	boolean isLoopMember(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		//Is this segment a member of the current loop
-		String segID = theSegment.getElement(0);
-		String segData = theSegment.hasElement(1) ? theSegment.getElement(1) : null;
-		if (!loopStackItem.getLoop().isStartingSegment(segID, segData)
-				&& loopStackItem.getLoop().hasDataSegment(segID)) {
-			return true;
-		}
-		return false;
-	}
-
-	boolean isLoopRepeater(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		// Is this segment a starter for the current loop
-		String segID = theSegment.getElement(0);
-		String segData = theSegment.hasElement(1) ? theSegment.getElement(1) : null;
-		if (loopStackItem.getLoop().isStartingSegment(segID, segData)
-				&& (loopStackItem.getLoop().getRepetition() == X12Schema.INFINITE_REPEAT
-						|| loopStackItem.getCount() < loopStackItem.getLoop().getRepetition())) {
-			return true;
-		}
-		return false;
-	}
-
-	boolean isLoopChildStarter(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		// Is this segment is a starter for the immediate children
-		return (getChildLoopIndex(theSegment, loopStackItem) != -1);
-	}
-
-	boolean isLoopSiblingStarter(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-
-		SchemaLoopStack.Item theParent = loopStackItem.getParentItem();
-		if (theParent == null)
-			return false;
-
-		return isLoopChildStarter(theSegment, theParent);
-	}
-
-	boolean isLoopParent(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		return (searchParentLoops(theSegment, loopStackItem) != 0);
-	}
-
-	int getChildLoopIndex(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		int nFound = -1;
-
-		String segID = theSegment.getElement(0);
-		String segData = theSegment.hasElement(1) ? theSegment.getElement(1) : null;
-		int count = loopStackItem.getLoop().getLoopCount();
-
-		for (int i = 0; i < count; i++) {
-			X12Schema.Loop theChildLoop = loopStackItem.getLoop().getLoopAt(i);
-
-			if (theChildLoop.isStartingSegment(segID, segData)) {
-				int nChildCount = loopStackItem.getChildLoopCount(i);
-				if (nChildCount == 0 || theChildLoop.getRepetition() == X12Schema.INFINITE_REPEAT
-						|| nChildCount < theChildLoop.getRepetition()) {
-					nFound = i;
-					break;
-				}
-			}
-		}
-
-		return nFound;
-	}
-
-	int searchParentLoops(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
-		int nFound = 0;
-		int nCount = 0;
-
-		SchemaLoopStack.Item parent = loopStackItem.getParentItem();
-		while (parent != null && nFound == 0) {
-			nCount++;
-
-			if (isLoopEnder(theSegment, parent) || isLoopRepeater(theSegment, parent)
-					|| isLoopChildStarter(theSegment, parent) || isLoopSiblingStarter(theSegment, parent)
-					|| isLoopMember(theSegment, parent)) {
-				nFound = nCount;
-			} else {
-				parent = parent.getParentItem();
-			}
-		}
-
-		return nFound;
-	}
-
-	private void openLoop(X12Segment theSegment, X12Schema.Loop loop) throws XMLStreamException {
-		// Push SchemaLoop onto the stack
-		SchemaLoopStack.Item loopStackItem = schemaLoopStack.push(loop, theSegment);
-
-		// Push XmlNode onto the stack
-		pushXmlNode("Loop");
-
-		xmlWriter.writeAttribute("id", loopStackItem.getLoop().getLoopID());
-	}
-
-	private void repeatLoop(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) throws XMLStreamException {
-		// Pop he current XmlNode
-		if (!xmlNodeStack.isEmpty()) {
-			popXmlNode();
-		}
-
-		// Increment loop usage count
-		loopStackItem.incrementCount();
-
-		// Reset child loop counters
-		loopStackItem.resetChildLoopCounters();
-
-		// Push XmlNode onto the stack
-		pushXmlNode("Loop");
-
-		xmlWriter.writeAttribute("id", loopStackItem.getLoop().getLoopID());
-	}
-
-	private void closeLoop(int count) throws XMLStreamException {
-		for (int i = 0; i < count && !xmlNodeStack.isEmpty(); i++) {
-			// Pop SchemaLoop from the stack
-			schemaLoopStack.pop();
-
-			// Pop XmlNode from the stack
-			popXmlNode();
-		}
-	}
-
-	private void createSegmentNode(X12Segment theSegment) throws XMLStreamException {
-		String name = theSegment.getElement(0);
-
-		xmlWriter.writeStartElement(name);
-
-		for (int i = 1; i < theSegment.getElementCount(); i++) {
-
-			xmlWriter.writeStartElement(String.format("%S%02d", theSegment.getElement(0), i));
-			if (hasSubElements(theSegment, i)) {
-				createSubElements(theSegment, i);
-			} else {
-				xmlWriter.writeCharacters(theSegment.getElement(i));
-			}
-			xmlWriter.writeEndElement();
-		}
-
-		xmlWriter.writeEndElement();
-	}
-
-	private boolean hasSubElements(X12Segment theSegment, int index) {
-		// Do not consider the ISA element
-		return (!isSegment(theSegment, "ISA") && theSegment.getElement(index).indexOf(subElementSeparator) >= 0);
-	}
-
-	private void createSubElements(X12Segment theSegment, int index) throws XMLStreamException {
-		String[] subEle = theSegment.getElement(index).split(Character.toString(subElementSeparator));
-
-		for (int i = 0; i < subEle.length; i++) {
-			xmlWriter.writeStartElement(String.format("%S%02d-%02d", theSegment.getElement(0), index, i + 1));
-			xmlWriter.writeCharacters(subEle[i]);
-			xmlWriter.writeEndElement();
-		}
-	}
-
-	private void createSegmentLoop(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) throws XMLStreamException
-	{
-		int nIndex = getChildLoopIndex(theSegment, loopStackItem);
-		assert(nIndex > -1);
-
-		if(nIndex < 0) return;
-
-		loopStackItem.incrementChildLoopCount(nIndex);
-						
-		openLoop(theSegment, loopStackItem.getLoop().getLoopAt(nIndex));
-
-		createSegmentNode(theSegment);	}
-	
-	private SchemaLoopStack.Item getPrevLoopHL(SchemaLoopStack.Item loopStackItem)
-	{
-		SchemaLoopStack.Item loopHL = null;
-
-		SchemaLoopStack.Item parentItem = loopStackItem.getParentItem();
-		while(parentItem != null && loopHL == null)
-		{
-			if(parentItem.hasHLID())
-			{
-				loopHL = parentItem;
-			}
-			else
-			{
-				parentItem = parentItem.getParentItem();
-			}
-		}
-
-		return loopHL;
-	}
-	
-	private int compareParentHL(X12Segment theSegment, SchemaLoopStack.Item loopStackItem)
-	{
-		assert(isSegmentHL(theSegment));
-		assert(loopStackItem.hasHLID());
-
-		int compareResult = 0;
-		String parentHLID = null;
-
-		if(isSegmentHL(theSegment)
-			&&
-			theSegment.getElementCount() > 2)
-		{
-			parentHLID = theSegment.getElement(2);
-		}
-
-		if(parentHLID != null && !parentHLID.isEmpty())
-		{
-			compareResult = parentHLID.compareToIgnoreCase(loopStackItem.getParentHLID());
-		}
-		
-		return compareResult;
-	}
-
-	private int searchParentLoopsHL(X12Segment theSegment, SchemaLoopStack.Item loopStackItem)
-	{
-		if(!isSegmentHL(theSegment))
-		{
-			assert(false);
-			return 0;
-		}
-
-		int found = 0;
-		int count = 1; //Include current loop
-		String parentHLID = null;
-
-		if(theSegment.getElementCount() > 2)
-		{
-			parentHLID = theSegment.getElement(2);
-		}
-
-		if(parentHLID == null)
-		{
-			return 0;
-		}
-
-		SchemaLoopStack.Item parentItem = loopStackItem.getParentItem();
-		while(parentItem != null && found == 0)
-		{
-			count++;
-
-			if(parentItem.hasHLID() &&
-					parentHLID.compareToIgnoreCase(parentItem.getParentHLID()) == 0)
-				//_stricmp(parentHLID, parentItem.getParentHLID()) == 0)
-				
-			{
-				found = count;
-			}
-			else
-			{
-				parentItem = parentItem.getParentItem();
-			}
-		}
-
-		return found;
-	}
-	
-	private void processSegment(X12Segment theSegment) throws XMLStreamException, X12Exception {
-		segmentCount++;
-		currentSegmentID = theSegment.getElement(0);
-
-		if (isSegment(theSegment, "ISA")) {
-			initializeState();
-			processSegmentISA(theSegment);
-		} else if (isSegment(theSegment, "GS")) {
-			processSegmentGS(theSegment);
-		} else if (isSegment(theSegment, "ST")) {
-			processSegmentST(theSegment);
-		} else if (isSegment(theSegment, "SE")) {
-			processSegmentSE(theSegment);
-		} else if (isSegment(theSegment, "GE")) {
-			processSegmentGE(theSegment);
-		} else if (isSegment(theSegment, "IEA")) {
-			processSegmentIEA(theSegment);
-		} else {
-			processSegmentDetail(theSegment);
-		}
-	}
-
-	private void processSegmentISA(X12Segment theSegment) throws XMLStreamException {
-		hdrState |= HDR_STATE_ISA;
-
-		// Save the ISA position
-		positionISA = pushXmlNode("InterchangeControl");
-
-		createSegmentNode(theSegment);
-	}
-
-	private void processSegmentGS(X12Segment theSegment) throws XMLStreamException {
-		hdrState |= HDR_STATE_GS;
-
-		// Save the GS position
-		positionGS = pushXmlNode("FunctionalGroup");
-
-		createSegmentNode(theSegment);
-	}
-
-	private void processSegmentST(X12Segment theSegment) throws X12Exception, XMLStreamException {
-		if (theSegment.getElementCount() < 2) {
-			throw new X12Exception("Unexpected ST segment state");
-		}
-
-		hdrState |= HDR_STATE_ST;
-
-		// Initial these transaction set dependent objects
-		schemaLoopStack.clear();
-		x12SchemaTS = null;
-
-		// Save the ST position
-		positionST = pushXmlNode("TransactionSet");
-
-		// Write the TransactionSet Identifier attribute
-		String tsID = theSegment.getElement(1);
-		xmlWriter.writeAttribute("id", tsID);
-
-		// Write the ST node
-		createSegmentNode(theSegment);
-
-		// If we have a schema retrieve the TransactionSet schema and push it on
-		// the schema stack
-		if (x12Schema != null) {
-			boolean found = false;
-
-			// Attempt to find a implementation specific schema to use
-			if (theSegment.hasElement(3)) {
-				String tsImpl = theSegment.getElement(3);
-
-				// First try an exact match
-				if (x12Schema.hasTransactionSet(tsID, tsImpl)) {
-					x12SchemaTS = x12Schema.getTransactionSet(tsID, tsImpl);
-					schemaLoopStack.push(x12SchemaTS, null);
-					found = true;
-				}
-
-				// If not found, look for a partial match on the implementation
-				// For example: 005010X223A2 => look for 005010X223
-				if (!found && tsImpl.length() > 10) {
-					String tsImpl10 = tsImpl.substring(0, 10);
-
-					if (x12Schema.hasTransactionSet(tsID, tsImpl10)) {
-						x12SchemaTS = x12Schema.getTransactionSet(tsID, tsImpl10);
-						schemaLoopStack.push(x12SchemaTS, null);
-						found = true;
-					}
-				}
-
-			}
-
-			// If not found try a more general version
-			if (!found && x12Schema.hasTransactionSet(tsID)) {
-				x12SchemaTS = x12Schema.getTransactionSet(tsID);
-				schemaLoopStack.push(x12SchemaTS, null);
-			}
-		}
-	}
-
-	private void processSegmentSE(X12Segment theSegment) throws XMLStreamException {
-		hdrState ^= HDR_STATE_ST;
-
-		// Pop all XmlNodes up to the TransactionSet
-		popXmlNodeUntil(positionST);
-
-		// Write the SE
-		createSegmentNode(theSegment);
-
-		// End TransactionSet
-		popXmlNode();
-	}
-
-	private void processSegmentGE(X12Segment theSegment) throws XMLStreamException {
-		hdrState ^= HDR_STATE_GS;
-
-		// Pop all XmlNodes up to the FunctionalGroup
-		popXmlNodeUntil(positionGS);
-
-		// Write the GE
-		createSegmentNode(theSegment);
-
-		// End FunctionalGroup
-		popXmlNode();
-	}
-
-	private void processSegmentIEA(X12Segment theSegment) throws XMLStreamException {
-		hdrState ^= HDR_STATE_ISA;
-
-		// Pop all XmlNodes up to the InterchangeControl
-		popXmlNodeUntil(positionISA);
-
-		// Write the IEA
-		createSegmentNode(theSegment);
-
-		// End InterchangeControl
-		popXmlNode();
-	}
-
-	private void processSegmentDetail(X12Segment theSegment) throws XMLStreamException {
-		if (x12SchemaTS != null && !schemaLoopStack.isEmpty()) {
-			processSegmentLoop(theSegment);
-		} else {
-			// Write out in generic fashion
-			createSegmentNode(theSegment);
-		}
-	}
-
-	private void processSegmentLoop(X12Segment theSegment) throws XMLStreamException {
-		boolean bProcess = true;
-		while (bProcess) {
-			bProcess = false;
-			SchemaLoopStack.Item loopStackItem = schemaLoopStack.current();
-
-			if (isLoopHL(theSegment, loopStackItem)) {
-				SchemaLoopStack.Item prevLoopHL = getPrevLoopHL(loopStackItem);
-
-				int nCloseCount = 0;
-
-				if (prevLoopHL != null) {
-					int nCompare = compareParentHL(theSegment, prevLoopHL);
-
-					if (nCompare == 0) {
-						// Same ParentHL
-						nCloseCount = searchParentLoopsHL(theSegment, loopStackItem);
-					} else if (nCompare > 0) {
-						// New Child HL
-						nCloseCount = searchParentLoops(theSegment, loopStackItem);
-					} else {
-						// Search for Sibling Parent HL
-						nCloseCount = searchParentLoopsHL(theSegment, loopStackItem);
-					}
-				} else {
-					nCloseCount = searchParentLoops(theSegment, loopStackItem);
-				}
-
-				// Close loops
-				closeLoop(nCloseCount);
-
-				// Reset current LoppStackItem
-				loopStackItem = schemaLoopStack.current();
-
-				// Create the HL segment loop
-				if (getChildLoopIndex(theSegment, loopStackItem) != -1) {
-					createSegmentLoop(theSegment, loopStackItem);
-				}
-			} else if (isLoopRepeater(theSegment, loopStackItem)) {				
-				repeatLoop(theSegment, loopStackItem);
-				createSegmentNode(theSegment);
-			} else if (isLoopChildStarter(theSegment, loopStackItem)) {
-				createSegmentLoop(theSegment, loopStackItem);
-			} else if (isLoopEnder(theSegment, loopStackItem)) {
-				if (isLoopMember(theSegment, loopStackItem)) {
-					createSegmentNode(theSegment);
-				}
-				closeLoop(1);
-			} else if (isLoopSiblingStarter(theSegment, loopStackItem)) {
-				closeLoop(searchParentLoops(theSegment, loopStackItem));
-
-				// Process this segment again within the parent loop
-				bProcess = true;
-			} else if (isLoopMember(theSegment, loopStackItem)) {
-				createSegmentNode(theSegment);
-			} else if (isLoopParent(theSegment, loopStackItem)) {
-				closeLoop(searchParentLoops(theSegment, loopStackItem));
-
-				// Process this segment again within the parent loop
-				bProcess = true;
-			}
-		}
-	}
-
-	public void convert(InputStream input, OutputStream output) throws XMLStreamException, IOException, X12Exception {
-		convert(input, output, null);
-	}
-
-	public void convert(InputStream input, OutputStream output, X12Schema x12Schema)
-			throws XMLStreamException, IOException, X12Exception {
-		// Ensure the factory
-		if (xmlOutputFactory == null) {
-			xmlOutputFactory = XMLOutputFactory.newInstance();
-		}
-
-		// Initialize
-		initializeState();
-
-		// Cache values
-		this.x12Schema = x12Schema;
-
-		// Create the XML Writer
-		xmlWriter = xmlOutputFactory.createXMLStreamWriter(output);
-
-		// Create the X12Reader
-		X12Reader theReader = new X12Reader(input);
-
-		// Read ISA record
-		ISASegment theISA = theReader.readISA();
-
-		// Cache the SubElementSeparator
-		subElementSeparator = theISA.getComponementSeparator();
-
-		// Convert the ISA structure to a segment
-		X12Segment theSegment = new X12Segment(theISA.toString().toCharArray(), theISA.getElementSeparator(),
-				theISA.getSegmentSeparator());
-
-		if (!isExpectedSegment(theSegment)) {
-			throw new X12Exception("Unexpected X12 segment - not ISA");
-		}
-
-		// Begin the Xml Doc
-		xmlWriter.writeStartDocument();
-		xmlWriter.writeStartElement("X12");
-
-		// Process ISA
-		processSegment(theSegment);
-
-		// Process segments
-		theSegment = theReader.readSegment();
-		while (theSegment != null) {
-
-			if (isExpectedSegment(theSegment)) {
-				processSegment(theSegment);
-			} else {
-				throw new X12Exception("Unexpected X12 segment");
-			}
-
-			theSegment = theReader.readSegment();
-		}
-
-		// Complete the Xml Doc
-		xmlWriter.writeEndElement();
-		xmlWriter.writeEndDocument();
-		xmlWriter.flush();
-	}
-}
+package com.brwsoftware.brwx12library;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+public class X12ConverterXml {
+
+	// Segments read by the boundary scan of the parallel convert
+	private static final int[] ENVELOPE_TAGS = { X12Tag.ISA, X12Tag.GS, X12Tag.ST, X12Tag.SE, X12Tag.GE,
+			X12Tag.IEA, X12Tag.TA1 };
+
+	private final X12Schema x12Schema;
+	// Only used to create writers, which the StAX factories allow from any
+	// thread
+	private final XMLOutputFactory xmlOutputFactory;
+
+	public X12ConverterXml() {
+		this(null);
+	}
+
+	public X12ConverterXml(X12Schema x12Schema) {
+		// Nothing changes after this, so one converter can be shared by any
+		// number of threads - the state of each convert is in a Context
+		this.x12Schema = x12Schema;
+		this.xmlOutputFactory = XMLOutputFactory.newInstance();
+	}
+
+	public static final class Context {
+		// State of one convert. A Context can be reused (from a pool or a
+		// ThreadLocal) to keep the loop stack and the element names, but by
+		// only one convert at a time.
+		private final XmlHandler handler = new XmlHandler();
+		private final X12LoopParser loopParser = new X12LoopParser(handler, null);
+		private final X12Segment segment = new X12Segment();
+
+		public Context() {
+		}
+
+		private XMLStreamWriter begin(XMLStreamWriter xmlWriter, X12Schema x12Schema) {
+			handler.xmlWriter = xmlWriter;
+			loopParser.reset(x12Schema);
+			return xmlWriter;
+		}
+
+		private void end() {
+			// Do not hold on to the output
+			handler.xmlWriter = null;
+		}
+
+		private void processSegment(X12Segment theSegment) throws XMLStreamException, X12Exception {
+			try {
+				loopParser.processSegment(theSegment);
+			} catch (X12Exception e) {
+				throw unwrap(e);
+			}
+		}
+
+		private void endData() throws XMLStreamException, X12Exception {
+			try {
+				loopParser.endData();
+			} catch (X12Exception e) {
+				throw unwrap(e);
+			}
+		}
+	}
+
+	private static final class XmlHandler implements X12Handler {
+		// Writes the structure from X12LoopParser. XMLStreamExceptions are
+		// passed through an X12Exception (see unwrap)
+		private XMLStreamWriter xmlWriter;
+		private final X12SegmentNames.Table segmentNames = new X12SegmentNames.Table();
+
+		public void startInterchange(X12Segment theISA) throws X12Exception {
+			try {
+				xmlWriter.writeStartElement("InterchangeControl");
+				createSegmentNode(theISA);
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		public void endInterchange(X12Segment theIEA) throws X12Exception {
+			endNode(theIEA);
+		}
+
+		public void startGroup(X12Segment theGS) throws X12Exception {
+			try {
+				xmlWriter.writeStartElement("FunctionalGroup");
+				createSegmentNode(theGS);
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		public void endGroup(X12Segment theGE) throws X12Exception {
+			endNode(theGE);
+		}
+
+		public void startTransactionSet(X12Segment theST) throws X12Exception {
+			try {
+				xmlWriter.writeStartElement("TransactionSet");
+
+				// Write the TransactionSet Identifier attribute
+				xmlWriter.writeAttribute("id", theST.getElement(1));
+
+				createSegmentNode(theST);
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		public void endTransactionSet(X12Segment theSE) throws X12Exception {
+			endNode(theSE);
+		}
+
+		public void startLoop(String loopID) throws X12Exception {
+			try {
+				xmlWriter.writeStartElement("Loop");
+				xmlWriter.writeAttribute("id", loopID);
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		public void endLoop() throws X12Exception {
+			try {
+				xmlWriter.writeEndElement();
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		public void segment(X12Segment theSegment) throws X12Exception {
+			try {
+				createSegmentNode(theSegment);
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		private void endNode(X12Segment theSegment) throws X12Exception {
+			// The trailer (if any) is the last child of its node
+			try {
+				if (theSegment != null) {
+					createSegmentNode(theSegment);
+				}
+				xmlWriter.writeEndElement();
+			} catch (XMLStreamException e) {
+				throw new X12Exception(e);
+			}
+		}
+
+		private void createSegmentNode(X12Segment theSegment) throws XMLStreamException {
+			X12SegmentNames names = segmentNames.get(theSegment);
+
+			xmlWriter.writeStartElement(names.getSegmentName(theSegment));
+
+			for (int i = 1; i < theSegment.getElementCount(); i++) {
+
+				xmlWriter.writeStartElement(names.getElementName(i));
+				if (hasSubElements(theSegment, i)) {
+					createSubElements(theSegment, i, names);
+				} else {
+					xmlWriter.writeCharacters(theSegment.getElement(i));
+				}
+				xmlWriter.writeEndElement();
+			}
+
+			xmlWriter.writeEndElement();
+		}
+
+		private boolean hasSubElements(X12Segment theSegment, int index) {
+			// Do not consider the ISA element
+			return (!theSegment.isTag(X12Tag.ISA) && theSegment.getComponentCount(index) > 1);
+		}
+
+		private void createSubElements(X12Segment theSegment, int index, X12SegmentNames names)
+				throws XMLStreamException {
+			// Trailing empty components are dropped (same as the String.split this replaced)
+			int count = theSegment.getComponentCount(index);
+			while (count > 0 && theSegment.getComponentLength(index, count - 1) == 0) {
+				count--;
+			}
+
+			for (int i = 0; i < count; i++) {
+				xmlWriter.writeStartElement(names.getComponentName(index, i + 1));
+				xmlWriter.writeCharacters(theSegment.getComponent(index, i));
+				xmlWriter.writeEndElement();
+			}
+		}
+	}
+
+	private static XMLStreamException unwrap(X12Exception e) throws X12Exception {
+		// XmlHandler can only throw X12Exception
+		if (e.getCause() instanceof XMLStreamException) {
+			return (XMLStreamException) e.getCause();
+		}
+		throw e;
+	}
+
+	public void convert(InputStream input, OutputStream output) throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, Charset.defaultCharset(), new Context());
+	}
+
+	public void convert(InputStream input, OutputStream output, Charset charset)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, charset, new Context());
+	}
+
+	public void convert(InputStream input, OutputStream output, Context context)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, Charset.defaultCharset(), context);
+	}
+
+	public void convert(InputStream input, OutputStream output, Charset charset, Context context)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, charset, context);
+	}
+
+	public void convert(InputStream input, OutputStream output, X12Schema x12Schema)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, Charset.defaultCharset(), new Context());
+	}
+
+	public void convert(InputStream input, OutputStream output, X12Schema x12Schema, Charset charset)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, charset, new Context());
+	}
+
+	private void convert(InputStream input, OutputStream output, X12Schema x12Schema, Charset charset,
+			Context context) throws XMLStreamException, IOException, X12Exception {
+		// Create the XML Writer
+		XMLStreamWriter xmlWriter = context.begin(xmlOutputFactory.createXMLStreamWriter(output), x12Schema);
+		try {
+			// Create the X12Reader
+			X12Reader theReader = new X12Reader(input, charset);
+
+			// Read ISA record
+			ISASegment theISA = theReader.readISA();
+
+			// Begin the Xml Doc
+			xmlWriter.writeStartDocument();
+			xmlWriter.writeStartElement("X12");
+
+			try {
+				// Process ISA
+				context.loopParser.interchange(theISA);
+
+				// Process segments
+				// Note: the same segment object is refilled for every read
+				X12Segment theSegment = theReader.readSegment(context.segment);
+				while (theSegment != null) {
+					context.loopParser.segment(theSegment);
+
+					theSegment = theReader.readSegment(theSegment);
+				}
+			} catch (X12Exception e) {
+				throw unwrap(e);
+			}
+
+			// Complete the Xml Doc
+			xmlWriter.writeEndElement();
+			xmlWriter.writeEndDocument();
+			xmlWriter.flush();
+		} finally {
+			context.end();
+		}
+	}
+
+	private final class TransactionSetTask implements Callable<byte[]> {
+		// Converts the bytes [start, end) - one ST...SE transaction set - to
+		// an XML fragment
+		private final FileChannel channel;
+		private final X12Reader interchange;
+		private final X12Schema x12Schema;
+		private final Charset charset;
+		private final long start;
+		private final long end;
+		private final ByteArrayOutputStream fragment;
+		private final XMLStreamWriter fragmentWriter;
+
+		private TransactionSetTask(FileChannel channel, X12Reader interchange, X12Schema x12Schema,
+				Charset charset, long start, long end) throws XMLStreamException {
+			this.channel = channel;
+			// The separators and read modifier as they are now - the boundary
+			// scan may be in the next interchange by the time call runs
+			this.interchange = new X12Reader(ByteBuffer.allocate(0), interchange);
+			this.x12Schema = x12Schema;
+			this.charset = charset;
+			this.start = start;
+			this.end = end;
+			this.fragment = new ByteArrayOutputStream((int) Math.min(end - start, Integer.MAX_VALUE));
+			this.fragmentWriter = xmlOutputFactory.createXMLStreamWriter(fragment);
+		}
+
+		public byte[] call() throws IOException, XMLStreamException, X12Exception {
+			ByteBuffer theBuffer = ByteBuffer.allocate((int) (end - start));
+			while (theBuffer.hasRemaining()) {
+				if (channel.read(theBuffer, start + theBuffer.position()) < 0) {
+					break;
+				}
+			}
+			theBuffer.flip();
+
+			// Each transaction set gets its own parser state
+			Context theContext = new Context();
+			theContext.begin(fragmentWriter, x12Schema);
+			theContext.loopParser.initializeGroupState();
+
+			X12Reader theReader;
+			if (X12Reader.isSingleByte(charset)) {
+				theReader = new X12Reader(theBuffer, interchange);
+			} else {
+				theReader = new X12Reader(new ByteArrayInputStream(theBuffer.array(), 0, theBuffer.limit()), charset,
+						interchange);
+			}
+			X12Segment theSegment = theReader.readSegment(theContext.segment);
+			while (theSegment != null) {
+				if (theContext.loopParser.isExpectedSegment(theSegment)) {
+					theContext.processSegment(theSegment);
+				} else {
+					throw new X12Exception("Unexpected X12 segment");
+				}
+
+				theSegment = theReader.readSegment(theSegment);
+			}
+			theContext.endData();
+
+			fragmentWriter.flush();
+			return fragment.toByteArray();
+		}
+	}
+
+	private void writeTransactionSet(Future<byte[]> theTask, XMLStreamWriter xmlWriter, OutputStream output)
+			throws XMLStreamException, IOException, X12Exception {
+		byte[] theFragment;
+		try {
+			theFragment = theTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new X12Exception("Interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof X12Exception) {
+				throw (X12Exception) cause;
+			} else if (cause instanceof XMLStreamException) {
+				throw (XMLStreamException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new X12Exception(cause);
+		}
+
+		// Everything written so far must reach the stream before the fragment
+		xmlWriter.flush();
+		output.write(theFragment);
+	}
+
+	private static X12Segment decodeSegment(X12Segment theSegment, Charset charset, X12Segment theDecoded)
+			throws X12Exception {
+		// A segment read as bytes by the boundary scan, decoded with charset
+		if (X12Reader.isSingleByte(charset)) {
+			return theSegment;
+		}
+		byte[] theBytes = new byte[theSegment.length()];
+		theSegment.copyTo(theBytes, 0);
+		CharBuffer theChars = charset.decode(ByteBuffer.wrap(theBytes));
+		theDecoded.set(theChars.array(), theChars.limit(), theSegment.getElementSeparator(),
+				theSegment.getSegmentSeparator(), theSegment.getComponentSeparator(),
+				theSegment.getRepetitionSeparator());
+		return theDecoded;
+	}
+
+	public void convert(Path input, OutputStream output, X12Schema x12Schema, ForkJoinPool pool)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, x12Schema, Charset.defaultCharset(), pool);
+	}
+
+	public void convert(Path input, OutputStream output, X12Schema x12Schema, Charset charset, ForkJoinPool pool)
+			throws XMLStreamException, IOException, X12Exception {
+		// Same output as convert(InputStream, ...) but the transaction sets are
+		// converted in parallel. A boundary scan reads only the envelope
+		// segments (ISA, GS, ST, SE, GE, IEA) and hands each ST...SE byte range
+		// to the pool. The fragments are written back in their original order.
+		// The scan works on the bytes, so the charset must keep the ASCII
+		// separators and tags as single bytes: ISO-8859-1, US-ASCII or UTF-8.
+		if (!X12Reader.isAsciiCompatible(charset)) {
+			throw new X12Exception("Charset not supported by the parallel convert: " + charset.name());
+		}
+
+		// Create the XML Writer
+		Context context = new Context();
+		XMLStreamWriter xmlWriter = context.begin(xmlOutputFactory.createXMLStreamWriter(output), x12Schema);
+
+		// Limit the transaction sets held in memory while waiting their turn
+		int maxPending = pool.getParallelism() * 4;
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		FileChannel theChannel = FileChannel.open(input, StandardOpenOption.READ);
+		try {
+			X12Reader theReader = new X12Reader(theChannel);
+
+			// Read ISA record
+			X12Segment theDecoded = new X12Segment();
+			X12Segment theSegment = decodeSegment(theReader.readISA().toSegment(), charset, theDecoded);
+
+			if (!context.loopParser.isExpectedSegment(theSegment)) {
+				throw new X12Exception("Unexpected X12 segment - not ISA");
+			}
+
+			// Begin the Xml Doc
+			xmlWriter.writeStartDocument();
+			xmlWriter.writeStartElement("X12");
+
+			// Process ISA
+			context.processSegment(theSegment);
+
+			// Scan the envelope
+			long start = theReader.getPosition();
+			theSegment = theReader.readSegment(ENVELOPE_TAGS, new X12Segment());
+			while (theSegment != null) {
+
+				if (!context.loopParser.isExpectedSegment(theSegment)) {
+					throw new X12Exception("Unexpected X12 segment");
+				}
+
+				boolean inTransactionSet = context.loopParser.isInTransactionSet();
+				if (inTransactionSet) {
+					// The transaction set is handed over at its SE, or up to the
+					// envelope segment found in place of a missing SE
+					long end = theSegment.isTag(X12Tag.SE) ? theReader.getPosition()
+							: theReader.getSegmentPosition();
+					if (pending.size() == maxPending) {
+						writeTransactionSet(pending.removeFirst(), xmlWriter, output);
+					}
+					pending.addLast(pool.submit(new TransactionSetTask(theChannel, theReader, x12Schema, charset,
+							start, end)));
+					start = end;
+				}
+				if (inTransactionSet || theSegment.isTag(X12Tag.ST)) {
+					context.loopParser.skipSegment(theSegment);
+				}
+
+				if (!theSegment.isTag(X12Tag.ST) && !theSegment.isTag(X12Tag.SE)) {
+					// Transaction sets before an envelope segment are written first
+					while (!pending.isEmpty()) {
+						writeTransactionSet(pending.removeFirst(), xmlWriter, output);
+					}
+					context.processSegment(decodeSegment(theSegment, charset, theDecoded));
+					start = theReader.getPosition();
+				}
+
+				theSegment = theReader.readSegment(ENVELOPE_TAGS, theSegment);
+			}
+
+			if (context.loopParser.isInTransactionSet()) {
+				// The data stops inside a transaction set
+				pending.addLast(pool.submit(new TransactionSetTask(theChannel, theReader, x12Schema, charset,
+						start, theChannel.size())));
+			}
+
+			while (!pending.isEmpty()) {
+				writeTransactionSet(pending.removeFirst(), xmlWriter, output);
+			}
+		} finally {
+			for (Future<byte[]> theTask : pending) {
+				theTask.cancel(true);
+			}
+			theChannel.close();
+		}
+
+		// Complete the Xml Doc
+		xmlWriter.writeEndElement();
+		xmlWriter.writeEndDocument();
+		xmlWriter.flush();
+	}
+}
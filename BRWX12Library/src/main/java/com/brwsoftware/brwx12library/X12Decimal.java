@@ -0,0 +1,41 @@
+package com.brwsoftware.brwx12library;
+
+import java.math.BigDecimal;
+
+public final class X12Decimal {
+	// Value is unscaledValue * 10^-scale (e.g. 123.45 is 12345 with a scale of 2)
+	private long unscaledValue;
+	private int scale;
+
+	public X12Decimal() {
+	}
+
+	public X12Decimal(long unscaledValue, int scale) {
+		set(unscaledValue, scale);
+	}
+
+	public void set(long unscaledValue, int scale) {
+		this.unscaledValue = unscaledValue;
+		this.scale = scale;
+	}
+
+	public long getUnscaledValue() {
+		return unscaledValue;
+	}
+
+	public int getScale() {
+		return scale;
+	}
+
+	public BigDecimal toBigDecimal() {
+		return BigDecimal.valueOf(unscaledValue, scale);
+	}
+
+	public double doubleValue() {
+		return toBigDecimal().doubleValue();
+	}
+
+	public String toString() {
+		return toBigDecimal().toPlainString();
+	}
+}
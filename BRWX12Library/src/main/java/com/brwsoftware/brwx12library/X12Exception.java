@@ -1,30 +1,30 @@
-package com.brwsoftware.brwx12library;
-
-@SuppressWarnings("serial")
-public class X12Exception extends Exception {
-
-	public X12Exception() {
-		// TODO Auto-generated constructor stub
-	}
-
-	public X12Exception(String arg0) {
-		super(arg0);
-		// TODO Auto-generated constructor stub
-	}
-
-	public X12Exception(Throwable arg0) {
-		super(arg0);
-		// TODO Auto-generated constructor stub
-	}
-
-	public X12Exception(String arg0, Throwable arg1) {
-		super(arg0, arg1);
-		// TODO Auto-generated constructor stub
-	}
-
-	public X12Exception(String arg0, Throwable arg1, boolean arg2, boolean arg3) {
-		super(arg0, arg1, arg2, arg3);
-		// TODO Auto-generated constructor stub
-	}
-
-}
+package com.brwsoftware.brwx12library;
+
+@SuppressWarnings("serial")
+public class X12Exception extends Exception {
+
+	public X12Exception() {
+		// TODO Auto-generated constructor stub
+	}
+
+	public X12Exception(String arg0) {
+		super(arg0);
+		// TODO Auto-generated constructor stub
+	}
+
+	public X12Exception(Throwable arg0) {
+		super(arg0);
+		// TODO Auto-generated constructor stub
+	}
+
+	public X12Exception(String arg0, Throwable arg1) {
+		super(arg0, arg1);
+		// TODO Auto-generated constructor stub
+	}
+
+	public X12Exception(String arg0, Throwable arg1, boolean arg2, boolean arg3) {
+		super(arg0, arg1, arg2, arg3);
+		// TODO Auto-generated constructor stub
+	}
+
+}
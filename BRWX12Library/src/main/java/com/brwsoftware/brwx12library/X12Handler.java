@@ -0,0 +1,71 @@
+package com.brwsoftware.brwx12library;
+
+public interface X12Handler {
+
+/*
+	Receives the structure X12LoopParser finds: the envelopes and, when the
+	transaction set has a schema, the loops. Every start is matched by its
+	end (except when the data stops early). An envelope whose trailer is
+	missing is ended by the next envelope segment, with a null trailer.
+	X12ConverterXml and X12ConverterJson are handlers that write the events
+	out, other handlers can work on them directly without going through
+	XML.
+
+	The segment objects are reused - copy anything needed after the call
+	returns.
+*/
+	// The ISA and the IEA (theIEA is null when missing)
+	void startInterchange(X12Segment theISA) throws X12Exception;
+
+	void endInterchange(X12Segment theIEA) throws X12Exception;
+
+	// The GS and the GE (theGE is null when missing)
+	void startGroup(X12Segment theGS) throws X12Exception;
+
+	void endGroup(X12Segment theGE) throws X12Exception;
+
+	// The ST and the SE (theSE is null when missing). Any loops still open
+	// are ended first.
+	void startTransactionSet(X12Segment theST) throws X12Exception;
+
+	void endTransactionSet(X12Segment theSE) throws X12Exception;
+
+	// Loop from the transaction set schema (its id attribute, e.g. "2300").
+	// A repetition of a loop is reported as its end and a new start.
+	void startLoop(String loopID) throws X12Exception;
+
+	void endLoop() throws X12Exception;
+
+	// Every other segment (including a TA1)
+	void segment(X12Segment theSegment) throws X12Exception;
+
+	// Does nothing - extend it and override only what is needed
+	public static class Adapter implements X12Handler {
+		public void startInterchange(X12Segment theISA) throws X12Exception {
+		}
+
+		public void endInterchange(X12Segment theIEA) throws X12Exception {
+		}
+
+		public void startGroup(X12Segment theGS) throws X12Exception {
+		}
+
+		public void endGroup(X12Segment theGE) throws X12Exception {
+		}
+
+		public void startTransactionSet(X12Segment theST) throws X12Exception {
+		}
+
+		public void endTransactionSet(X12Segment theSE) throws X12Exception {
+		}
+
+		public void startLoop(String loopID) throws X12Exception {
+		}
+
+		public void endLoop() throws X12Exception {
+		}
+
+		public void segment(X12Segment theSegment) throws X12Exception {
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public final class X12Index {
+
+/*
+	Byte offsets of every ISA, GS and ST in an X12 file, built in one pass.
+	The index can be saved to a sidecar file and loaded again later to open
+	an X12Reader directly at an interchange, functional group or transaction
+	set without rescanning the file. The readers read the element text as
+	ISO-8859-1 unless a charset (US-ASCII or UTF-8) is passed to open.
+*/
+	private static final int MAGIC = 0x58313249; // "X12I"
+	private static final int VERSION = 1;
+	// More than readISA needs to analyze any ISA layout
+	private static final int ISA_MAP_SIZE = 256;
+	private static final int[] ENVELOPE_TAGS = { X12Tag.ISA, X12Tag.GS, X12Tag.ST, X12Tag.SE, X12Tag.GE,
+			X12Tag.IEA };
+
+	public static final class Entry {
+		private int tagCode;
+		private long offset;
+		private long length = -1;
+		private int parent = -1;
+		private int interchange = -1;
+		private int count = -1;
+		private String controlNumber;
+		private String identifier;
+		private String implementation;
+
+		private Entry() {
+		}
+
+		public int getTagCode() {
+			// X12Tag.ISA, X12Tag.GS or X12Tag.ST
+			return tagCode;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			// Through the end of the IEA, GE or SE
+			return length;
+		}
+
+		public int getParent() {
+			// Index of the enclosing entry or -1 for an ISA (or an ST outside
+			// of a functional group)
+			return parent;
+		}
+
+		public int getInterchange() {
+			// Index of the ISA entry whose separators apply (itself for an ISA)
+			return interchange;
+		}
+
+		public int getCount() {
+			// IEA01, GE01 or SE01 (-1 when missing)
+			return count;
+		}
+
+		public String getControlNumber() {
+			// ISA13, GS06 or ST02
+			return controlNumber;
+		}
+
+		public String getIdentifier() {
+			// ISA06 (trimmed), GS01 or ST01
+			return identifier;
+		}
+
+		public String getImplementation() {
+			// ISA12, GS08 or ST03
+			return implementation;
+		}
+	}
+
+	private long fileSize;
+	private ArrayList<Entry> entries = new ArrayList<Entry>();
+	private ArrayList<Entry> transactionSets = new ArrayList<Entry>();
+	private HashMap<String, Integer> transactionSetMap = new HashMap<String, Integer>();
+	// Index of the last ISA entry added
+	private int lastInterchange = -1;
+
+	private X12Index() {
+	}
+
+	private static String getElement(X12Segment theSegment, int index) {
+		return theSegment.hasElement(index) ? theSegment.getElement(index) : null;
+	}
+
+	private int add(X12Segment theSegment, long offset, int parent) {
+		Entry theEntry = new Entry();
+		theEntry.tagCode = theSegment.getTagCode();
+		theEntry.offset = offset;
+		theEntry.parent = parent;
+		switch (theEntry.tagCode) {
+		case X12Tag.ISA:
+			theEntry.controlNumber = getElement(theSegment, 13);
+			theEntry.identifier = getElement(theSegment, 6);
+			if (theEntry.identifier != null) {
+				theEntry.identifier = theEntry.identifier.trim();
+			}
+			theEntry.implementation = getElement(theSegment, 12);
+			break;
+		case X12Tag.GS:
+			theEntry.controlNumber = getElement(theSegment, 6);
+			theEntry.identifier = getElement(theSegment, 1);
+			theEntry.implementation = getElement(theSegment, 8);
+			break;
+		default:
+			theEntry.controlNumber = getElement(theSegment, 2);
+			theEntry.identifier = getElement(theSegment, 1);
+			theEntry.implementation = getElement(theSegment, 3);
+			break;
+		}
+		addEntry(theEntry);
+		return entries.size() - 1;
+	}
+
+	private void addEntry(Entry theEntry) {
+		// The entries are added in file order (also by load), so every entry
+		// belongs to the last ISA before it
+		if (theEntry.tagCode == X12Tag.ISA) {
+			lastInterchange = entries.size();
+		}
+		theEntry.interchange = lastInterchange;
+		entries.add(theEntry);
+		if (theEntry.tagCode == X12Tag.ST) {
+			// First one wins when a control number is repeated
+			if (theEntry.controlNumber != null && !transactionSetMap.containsKey(theEntry.controlNumber)) {
+				transactionSetMap.put(theEntry.controlNumber, transactionSets.size());
+			}
+			transactionSets.add(theEntry);
+		}
+	}
+
+	private void end(int index, X12Segment theSegment, long end) {
+		if (index >= 0) {
+			Entry theEntry = entries.get(index);
+			theEntry.length = end - theEntry.offset;
+			theEntry.count = theSegment.getElementAsInt(1, -1);
+		}
+	}
+
+	public static X12Index build(Path x12File) throws IOException, X12Exception {
+		X12Index theIndex = new X12Index();
+		theIndex.fileSize = Files.size(x12File);
+
+		X12Reader theReader = new X12Reader(x12File);
+		try {
+			int isaIndex = theIndex.add(theReader.readISA().toSegment(), theReader.getSegmentPosition(), -1);
+			int gsIndex = -1;
+			int stIndex = -1;
+
+			X12Segment theSegment = theReader.readSegment(ENVELOPE_TAGS, new X12Segment());
+			while (theSegment != null) {
+				switch (theSegment.getTagCode()) {
+				case X12Tag.ISA:
+					isaIndex = theIndex.add(theSegment, theReader.getSegmentPosition(), -1);
+					gsIndex = -1;
+					stIndex = -1;
+					break;
+				case X12Tag.GS:
+					gsIndex = theIndex.add(theSegment, theReader.getSegmentPosition(), isaIndex);
+					break;
+				case X12Tag.ST:
+					stIndex = theIndex.add(theSegment, theReader.getSegmentPosition(), gsIndex);
+					break;
+				case X12Tag.SE:
+					theIndex.end(stIndex, theSegment, theReader.getPosition());
+					stIndex = -1;
+					break;
+				case X12Tag.GE:
+					theIndex.end(gsIndex, theSegment, theReader.getPosition());
+					gsIndex = -1;
+					break;
+				case X12Tag.IEA:
+					theIndex.end(isaIndex, theSegment, theReader.getPosition());
+					isaIndex = -1;
+					break;
+				}
+
+				theSegment = theReader.readSegment(ENVELOPE_TAGS, theSegment);
+			}
+		} finally {
+			theReader.close();
+		}
+
+		// Anything left open runs to the end of the file
+		for (Entry theEntry : theIndex.entries) {
+			if (theEntry.length < 0) {
+				theEntry.length = theIndex.fileSize - theEntry.offset;
+			}
+		}
+
+		return theIndex;
+	}
+
+	public static X12Index load(Path indexFile) throws IOException, X12Exception {
+		DataInputStream theStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)));
+		try {
+			if (theStream.readInt() != MAGIC || theStream.readInt() != VERSION) {
+				throw new X12Exception("Invalid X12 index");
+			}
+
+			X12Index theIndex = new X12Index();
+			theIndex.fileSize = theStream.readLong();
+			int theCount = theStream.readInt();
+			for (int i = 0; i < theCount; i++) {
+				Entry theEntry = new Entry();
+				theEntry.tagCode = theStream.readInt();
+				theEntry.offset = theStream.readLong();
+				theEntry.length = theStream.readLong();
+				theEntry.parent = theStream.readInt();
+				theEntry.count = theStream.readInt();
+				theEntry.controlNumber = readString(theStream);
+				theEntry.identifier = readString(theStream);
+				theEntry.implementation = readString(theStream);
+				theIndex.addEntry(theEntry);
+			}
+			return theIndex;
+		} finally {
+			theStream.close();
+		}
+	}
+
+	public void save(Path indexFile) throws IOException {
+		DataOutputStream theStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexFile)));
+		try {
+			theStream.writeInt(MAGIC);
+			theStream.writeInt(VERSION);
+			theStream.writeLong(fileSize);
+			theStream.writeInt(entries.size());
+			for (Entry theEntry : entries) {
+				theStream.writeInt(theEntry.tagCode);
+				theStream.writeLong(theEntry.offset);
+				theStream.writeLong(theEntry.length);
+				theStream.writeInt(theEntry.parent);
+				theStream.writeInt(theEntry.count);
+				writeString(theStream, theEntry.controlNumber);
+				writeString(theStream, theEntry.identifier);
+				writeString(theStream, theEntry.implementation);
+			}
+		} finally {
+			theStream.close();
+		}
+	}
+
+	private static String readString(DataInputStream theStream) throws IOException {
+		return theStream.readBoolean() ? theStream.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream theStream, String theString) throws IOException {
+		theStream.writeBoolean(theString != null);
+		if (theString != null) {
+			theStream.writeUTF(theString);
+		}
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getEntryCount() {
+		return entries.size();
+	}
+
+	public Entry getEntry(int index) {
+		return entries.get(index);
+	}
+
+	public int getTransactionSetCount() {
+		return transactionSets.size();
+	}
+
+	public Entry getTransactionSet(int index) {
+		return transactionSets.get(index);
+	}
+
+	public int indexOfTransactionSet(String controlNumber) {
+		Integer index = transactionSetMap.get(controlNumber);
+		return (index == null) ? -1 : index;
+	}
+
+	public X12Reader open(Path x12File, Entry theEntry) throws IOException, X12Exception {
+		return open(x12File, theEntry, StandardCharsets.ISO_8859_1);
+	}
+
+	public X12Reader open(Path x12File, Entry theEntry, Charset charset) throws IOException, X12Exception {
+		// Maps the entry's bytes and returns a reader positioned at its first
+		// segment. For an ISA entry call readISA first as usual. For a GS or
+		// ST entry the separators are taken from the enclosing ISA, so
+		// readSegment can be called right away.
+		if (theEntry.length < 0 || theEntry.length > Integer.MAX_VALUE) {
+			throw new X12Exception("X12 index entry is too large to map");
+		}
+
+		FileChannel theChannel = FileChannel.open(x12File, StandardOpenOption.READ);
+		try {
+			if (theChannel.size() != fileSize) {
+				throw new X12Exception("X12 index does not match the file");
+			}
+
+			ByteBuffer theBuffer = theChannel.map(FileChannel.MapMode.READ_ONLY, theEntry.offset, theEntry.length);
+			if (theEntry.tagCode == X12Tag.ISA) {
+				return new X12Reader(theBuffer, charset);
+			}
+
+			if (theEntry.interchange < 0) {
+				throw new X12Exception("Invalid X12 index");
+			}
+			Entry theISA = entries.get(theEntry.interchange);
+
+			X12Reader theInterchange = new X12Reader(theChannel.map(FileChannel.MapMode.READ_ONLY, theISA.offset,
+					Math.min(ISA_MAP_SIZE, fileSize - theISA.offset)), charset);
+			theInterchange.readISA();
+			return new X12Reader(theBuffer, theInterchange);
+		} finally {
+			// The mappings stay valid after the channel is closed
+			theChannel.close();
+		}
+	}
+
+	public X12Reader openTransactionSet(Path x12File, int index) throws IOException, X12Exception {
+		return open(x12File, transactionSets.get(index));
+	}
+
+	public X12Reader openTransactionSet(Path x12File, int index, Charset charset)
+			throws IOException, X12Exception {
+		return open(x12File, transactionSets.get(index), charset);
+	}
+
+	public X12Reader openTransactionSet(Path x12File, String controlNumber) throws IOException, X12Exception {
+		return openTransactionSet(x12File, controlNumber, StandardCharsets.ISO_8859_1);
+	}
+
+	public X12Reader openTransactionSet(Path x12File, String controlNumber, Charset charset)
+			throws IOException, X12Exception {
+		int index = indexOfTransactionSet(controlNumber);
+		if (index < 0) {
+			return null;
+		}
+		return openTransactionSet(x12File, index, charset);
+	}
+}
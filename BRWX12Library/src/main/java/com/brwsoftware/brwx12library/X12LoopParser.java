@@ -0,0 +1,811 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+public final class X12LoopParser implements X12PushParser.Listener {
+
+/*
+	The envelope and schema loop logic behind X12ConverterXml and
+	X12ConverterJson. The segments are read (parse) or pushed in (as the
+	Listener of an X12PushParser) and the structure is reported to an
+	X12Handler as it is found. Without a schema, or for a transaction set
+	the schema does not have, there are no loops - only the envelopes and
+	the segments.
+
+	A parser is for one thread at a time but can be reused for any number
+	of inputs.
+*/
+	private static final int HDR_STATE_NONE = 0;
+	private static final int HDR_STATE_ISA = 1;
+	private static final int HDR_STATE_GS = 2;
+	private static final int HDR_STATE_ST = 4;
+
+	public X12LoopParser(X12Handler handler) {
+		this(handler, null);
+	}
+
+	public X12LoopParser(X12Handler handler, X12Schema x12Schema) {
+		this.handler = handler;
+		this.x12Schema = x12Schema;
+		schemaLoopStack = new X12LoopParser.SchemaLoopStack();
+	}
+
+	private final class SchemaLoopStack {
+		// Items are kept by depth and reused, so opening, repeating and
+		// closing loops does not allocate once the stack has been that deep
+		public SchemaLoopStack() {
+			items = new Item[16];
+			hlChars = new char[256];
+		}
+
+		private final class Item {
+			private Item parent;
+			private X12Schema.CompiledLoop node;
+			private X12Schema.Loop loop;
+			private int count;
+			// HL01 and HL02 are kept in hlChars starting at hlStart
+			private int hlStart;
+			private int hlIdLength;
+			private int parentHlIdLength;
+			// Indexed by child loop (sized from the compiled loop)
+			private int[] childLoopCounts = new int[0];
+
+			public Item getParentItem() {
+				return parent;
+			}
+
+			public X12Schema.CompiledLoop getNode() {
+				return node;
+			}
+
+			public X12Schema.Loop getLoop() {
+				return loop;
+			}
+
+			public int getCount() {
+				return count;
+			}
+
+			public int incrementCount() {
+				return count++;
+			}
+
+			public boolean hasHLID() {
+				return (hlIdLength > 0);
+			}
+
+			int compareParentHLID(CharSequence theID) {
+				// Same as theID.compareToIgnoreCase(HL02)
+				int start = hlStart + hlIdLength;
+				int n = Math.min(theID.length(), parentHlIdLength);
+				for (int i = 0; i < n; i++) {
+					char c1 = theID.charAt(i);
+					char c2 = hlChars[start + i];
+					if (c1 != c2) {
+						c1 = Character.toUpperCase(c1);
+						c2 = Character.toUpperCase(c2);
+						if (c1 != c2) {
+							c1 = Character.toLowerCase(c1);
+							c2 = Character.toLowerCase(c2);
+							if (c1 != c2) {
+								return c1 - c2;
+							}
+						}
+					}
+				}
+				return theID.length() - parentHlIdLength;
+			}
+
+			private void set(Item parent, X12Schema.CompiledLoop node) {
+				this.parent = parent;
+				this.node = node;
+				this.loop = node.getLoop();
+				count = 0;
+				hlStart = hlLength;
+				hlIdLength = 0;
+				parentHlIdLength = 0;
+				int childCount = node.getChildCount();
+				if (childLoopCounts.length < childCount) {
+					childLoopCounts = new int[childCount];
+				} else {
+					resetChildLoopCounters();
+				}
+			}
+
+			void setHLID(X12Segment seg) {
+				if (isSegmentHL(seg)) {
+					if (seg.getElementCount() > 1) {
+						hlIdLength = appendHL(seg.getElementView(1));
+					}
+
+					if (seg.getElementCount() > 2) {
+						parentHlIdLength = appendHL(seg.getElementView(2));
+					} else {
+						parentHlIdLength = appendHL("0");
+					}
+				}
+			}
+
+			int getChildLoopCount(int childLoopIndex) {
+				return (childLoopIndex < childLoopCounts.length) ? childLoopCounts[childLoopIndex] : 0;
+			}
+
+			void incrementChildLoopCount(int childLoopIndex) {
+				if (childLoopIndex >= 0) {
+					childLoopCounts[childLoopIndex]++;
+				}
+			}
+
+			void resetChildLoopCounters() {
+				Arrays.fill(childLoopCounts, 0);
+			}
+		}
+
+		private Item[] items;
+		private int size;
+		// HL IDs of the open loops, back to back in stack order
+		private char[] hlChars;
+		private int hlLength;
+
+		private int appendHL(CharSequence theID) {
+			int length = theID.length();
+			if (hlLength + length > hlChars.length) {
+				hlChars = Arrays.copyOf(hlChars, Math.max(hlChars.length << 1, hlLength + length));
+			}
+			for (int i = 0; i < length; i++) {
+				hlChars[hlLength++] = theID.charAt(i);
+			}
+			return length;
+		}
+
+		public boolean isEmpty() {
+			return (size == 0);
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+			hlLength = 0;
+		}
+
+		Item current() {
+			if (size == 0)
+				return null;
+
+			return items[size - 1];
+		}
+
+		Item push(X12Schema.CompiledLoop node, X12Segment seg) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size << 1);
+			}
+			Item item = items[size];
+			if (item == null) {
+				item = new Item();
+				items[size] = item;
+			}
+			item.set(current(), node);
+			item.incrementCount();
+
+			if (seg != null && isSegmentHL(seg)) {
+				item.setHLID(seg);
+			}
+
+			size++;
+
+			return item;
+		}
+
+		void pop() {
+			// The item is reused by the next push
+			size--;
+			hlLength = items[size].hlStart;
+		}
+	}
+
+	private final X12Handler handler;
+	private X12Schema x12Schema;
+	private final X12LoopParser.SchemaLoopStack schemaLoopStack;
+	private X12Schema.TransactionSet x12SchemaTS;
+	private int hdrState = HDR_STATE_NONE;
+	// Refilled by every read of parse
+	private final X12Segment segment = new X12Segment();
+
+	public void parse(InputStream input) throws IOException, X12Exception {
+		parse(new X12Reader(input));
+	}
+
+	public void parse(InputStream input, Charset charset) throws IOException, X12Exception {
+		parse(new X12Reader(input, charset));
+	}
+
+	public void parse(Path input) throws IOException, X12Exception {
+		// Byte mode (memory mapped), read as ISO-8859-1
+		X12Reader theReader = new X12Reader(input);
+		try {
+			parse(theReader);
+		} finally {
+			theReader.close();
+		}
+	}
+
+	public void parse(Path input, Charset charset) throws IOException, X12Exception {
+		// Byte mode with ISO-8859-1, US-ASCII or UTF-8
+		X12Reader theReader = new X12Reader(input, charset);
+		try {
+			parse(theReader);
+		} finally {
+			theReader.close();
+		}
+	}
+
+	public void parse(X12Reader reader) throws IOException, X12Exception {
+		// From the ISA on, through every interchange that follows
+		initializeState();
+
+		interchange(reader.readISA());
+
+		X12Segment theSegment = reader.readSegment(segment);
+		while (theSegment != null) {
+			segment(theSegment);
+
+			theSegment = reader.readSegment(theSegment);
+		}
+	}
+
+	public void interchange(ISASegment theISA) throws X12Exception {
+		X12Segment theSegment = theISA.toSegment();
+		if (!isExpectedSegment(theSegment)) {
+			throw new X12Exception("Unexpected X12 segment - not ISA");
+		}
+		processSegment(theSegment);
+	}
+
+	public void segment(X12Segment theSegment) throws X12Exception {
+		if (!isExpectedSegment(theSegment)) {
+			throw new X12Exception("Unexpected X12 segment");
+		}
+		processSegment(theSegment);
+	}
+
+	void initializeState() {
+		hdrState = HDR_STATE_NONE;
+		schemaLoopStack.clear();
+		x12SchemaTS = null;
+	}
+
+	void reset(X12Schema x12Schema) {
+		// For another convert with the same handler
+		this.x12Schema = x12Schema;
+		initializeState();
+	}
+
+	void initializeGroupState() {
+		// For a transaction set taken out of its group (see the parallel
+		// convert of X12ConverterXml)
+		initializeState();
+		hdrState = HDR_STATE_ISA | HDR_STATE_GS;
+	}
+
+	void skipSegment(X12Segment theSegment) {
+		// Keeps the state for a transaction set that is handled elsewhere -
+		// only its ST and its SE (or the envelope segment in place of a
+		// missing SE) are seen
+		if (isSegment(theSegment, X12Tag.ST)) {
+			hdrState |= HDR_STATE_ST;
+		} else {
+			hdrState &= ~HDR_STATE_ST;
+		}
+	}
+
+	boolean isInTransactionSet() {
+		return ((hdrState & HDR_STATE_ST) == HDR_STATE_ST);
+	}
+
+	void endData() throws X12Exception {
+		// Ends a transaction set still open at the end of a part of the data
+		// (see the parallel convert of X12ConverterXml)
+		if (isInTransactionSet()) {
+			endTransactionSet(null);
+		}
+	}
+
+	private boolean isSegment(X12Segment theSegment, int tagCode) {
+		return theSegment.isTag(tagCode);
+	}
+
+	private boolean isSegmentHL(X12Segment theSegment) {
+		return isSegment(theSegment, X12Tag.HL);
+	}
+
+	private boolean isValidDetailSegment(X12Segment theSegment) {
+		return true;
+	}
+
+	boolean isExpectedSegment(X12Segment theSegment) {
+		if (theSegment.getElementCount() == 0) {
+			return false;
+		}
+
+		boolean bReturn = false;
+
+		if ((hdrState & HDR_STATE_ST) == HDR_STATE_ST) {
+			// Must be SE (end of trnx set) or valid detail
+			if (isSegment(theSegment, X12Tag.SE) || isValidDetailSegment(theSegment)) {
+				bReturn = true;
+			}
+		} else if ((hdrState & HDR_STATE_GS) == HDR_STATE_GS) {
+			// Must be ST (start of trnx set) or GE(end of function group)
+			if (isSegment(theSegment, X12Tag.ST) || isSegment(theSegment, X12Tag.GE)) {
+				bReturn = true;
+			}
+		} else if ((hdrState & HDR_STATE_ISA) == HDR_STATE_ISA) {
+			// Must be GS (start of function group) or IEA (end of ISA) or TA1
+			// Note: If TA1, then it should be the lone record between ISA and
+			// IEA
+			if (isSegment(theSegment, X12Tag.GS) || isSegment(theSegment, X12Tag.IEA) || isSegment(theSegment, X12Tag.TA1)) {
+				bReturn = true;
+			}
+		} else if (hdrState == HDR_STATE_NONE) {
+			if (isSegment(theSegment, X12Tag.ISA)) {
+				return true;
+			}
+		} else {
+			bReturn = false;
+		}
+
+		return bReturn;
+	}
+
+	boolean isLoopHL(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
+		return isSegmentHL(theSegment);
+	}
+
+	// The tests below take the segment's rule for the loop (see
+	// X12Schema.CompiledLoop). A null rule means the segment has nothing to
+	// do with the loop.
+	X12Schema.SegmentRule getRule(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) {
+		return loopStackItem.getNode().getRule(theSegment);
+	}
+
+	boolean isLoopEnder(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		//Is this segment an ender for the current loop
+		return (rule != null && rule.isEnder());
+	}
+
+	boolean isLoopMember(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		//Is this segment a member of the current loop
+		if (rule != null && rule.isMember()
+				&& !(rule.isStarter() && loopStackItem.getLoop().isStartingSegment(theSegment))) {
+			return true;
+		}
+		return false;
+	}
+
+	boolean isLoopRepeater(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		// Is this segment a starter for the current loop
+		if (rule != null && rule.isStarter() && loopStackItem.getLoop().isStartingSegment(theSegment)
+				&& (loopStackItem.getLoop().getRepetition() == X12Schema.INFINITE_REPEAT
+						|| loopStackItem.getCount() < loopStackItem.getLoop().getRepetition())) {
+			return true;
+		}
+		return false;
+	}
+
+	boolean isLoopChildStarter(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		// Is this segment is a starter for the immediate children
+		return (getChildLoopIndex(theSegment, loopStackItem, rule) != -1);
+	}
+
+	boolean isLoopSiblingStarter(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		SchemaLoopStack.Item theParent = loopStackItem.getParentItem();
+		if (theParent == null || rule == null || !rule.isSiblingStarter())
+			return false;
+
+		return isLoopChildStarter(theSegment, theParent, getRule(theSegment, theParent));
+	}
+
+	boolean isLoopParent(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		return (searchParentLoops(theSegment, loopStackItem, rule) != 0);
+	}
+
+	int getChildLoopIndex(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		if (rule == null) {
+			return -1;
+		}
+
+		// Only the children started by this segment's tag are tested
+		for (int i : rule.getChildLoops()) {
+			X12Schema.Loop theChildLoop = loopStackItem.getLoop().getLoopAt(i);
+			if (theChildLoop.isStartingSegment(theSegment)) {
+				int nChildCount = loopStackItem.getChildLoopCount(i);
+				if (nChildCount == 0 || theChildLoop.getRepetition() == X12Schema.INFINITE_REPEAT
+						|| nChildCount < theChildLoop.getRepetition()) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	int searchParentLoops(X12Segment theSegment, SchemaLoopStack.Item loopStackItem, X12Schema.SegmentRule rule) {
+		if (rule == null) {
+			return 0;
+		}
+
+		// Only the ancestors that may take this segment's tag are tested
+		SchemaLoopStack.Item parent = loopStackItem;
+		int nCount = 0;
+		for (int nLevel : rule.getParentLevels()) {
+			while (nCount < nLevel && parent != null) {
+				parent = parent.getParentItem();
+				nCount++;
+			}
+			if (parent == null) {
+				break;
+			}
+
+			X12Schema.SegmentRule parentRule = getRule(theSegment, parent);
+			if (isLoopEnder(theSegment, parent, parentRule) || isLoopRepeater(theSegment, parent, parentRule)
+					|| isLoopChildStarter(theSegment, parent, parentRule)
+					|| isLoopSiblingStarter(theSegment, parent, parentRule)
+					|| isLoopMember(theSegment, parent, parentRule)) {
+				return nCount;
+			}
+		}
+		return 0;
+	}
+
+	private void openLoop(X12Segment theSegment, X12Schema.CompiledLoop node) throws X12Exception {
+		// Push SchemaLoop onto the stack
+		SchemaLoopStack.Item loopStackItem = schemaLoopStack.push(node, theSegment);
+
+		handler.startLoop(loopStackItem.getLoop().getLoopID());
+	}
+
+	private void repeatLoop(X12Segment theSegment, SchemaLoopStack.Item loopStackItem) throws X12Exception {
+		// End the current repetition
+		handler.endLoop();
+
+		// Increment loop usage count
+		loopStackItem.incrementCount();
+
+		// Reset child loop counters
+		loopStackItem.resetChildLoopCounters();
+
+		handler.startLoop(loopStackItem.getLoop().getLoopID());
+	}
+
+	private void closeLoop(int count) throws X12Exception {
+		// The transaction set itself is never closed here
+		for (int i = 0; i < count && schemaLoopStack.size() > 1; i++) {
+			// Pop SchemaLoop from the stack
+			schemaLoopStack.pop();
+
+			handler.endLoop();
+		}
+	}
+
+	private void createSegmentLoop(X12Segment theSegment, SchemaLoopStack.Item loopStackItem,
+			X12Schema.SegmentRule rule) throws X12Exception
+	{
+		int nIndex = getChildLoopIndex(theSegment, loopStackItem, rule);
+		assert(nIndex > -1);
+
+		if(nIndex < 0) return;
+
+		loopStackItem.incrementChildLoopCount(nIndex);
+
+		openLoop(theSegment, loopStackItem.getNode().getChild(nIndex));
+
+		handler.segment(theSegment);	}
+
+	private SchemaLoopStack.Item getPrevLoopHL(SchemaLoopStack.Item loopStackItem)
+	{
+		SchemaLoopStack.Item loopHL = null;
+
+		SchemaLoopStack.Item parentItem = loopStackItem.getParentItem();
+		while(parentItem != null && loopHL == null)
+		{
+			if(parentItem.hasHLID())
+			{
+				loopHL = parentItem;
+			}
+			else
+			{
+				parentItem = parentItem.getParentItem();
+			}
+		}
+
+		return loopHL;
+	}
+
+	private int compareParentHL(X12Segment theSegment, SchemaLoopStack.Item loopStackItem)
+	{
+		assert(isSegmentHL(theSegment));
+		assert(loopStackItem.hasHLID());
+
+		int compareResult = 0;
+		CharSequence parentHLID = null;
+
+		if(isSegmentHL(theSegment)
+			&&
+			theSegment.getElementCount() > 2)
+		{
+			parentHLID = theSegment.getElementView(2);
+		}
+
+		if(parentHLID != null && parentHLID.length() != 0)
+		{
+			compareResult = loopStackItem.compareParentHLID(parentHLID);
+		}
+
+		return compareResult;
+	}
+
+	private int searchParentLoopsHL(X12Segment theSegment, SchemaLoopStack.Item loopStackItem)
+	{
+		if(!isSegmentHL(theSegment))
+		{
+			assert(false);
+			return 0;
+		}
+
+		int found = 0;
+		int count = 1; //Include current loop
+		CharSequence parentHLID = null;
+
+		if(theSegment.getElementCount() > 2)
+		{
+			parentHLID = theSegment.getElementView(2);
+		}
+
+		if(parentHLID == null)
+		{
+			return 0;
+		}
+
+		SchemaLoopStack.Item parentItem = loopStackItem.getParentItem();
+		while(parentItem != null && found == 0)
+		{
+			count++;
+
+			if(parentItem.hasHLID() &&
+					parentItem.compareParentHLID(parentHLID) == 0)
+				//_stricmp(parentHLID, parentItem.getParentHLID()) == 0)
+
+			{
+				found = count;
+			}
+			else
+			{
+				parentItem = parentItem.getParentItem();
+			}
+		}
+
+		return found;
+	}
+
+	void processSegment(X12Segment theSegment) throws X12Exception {
+		switch (theSegment.getTagCode()) {
+		case X12Tag.ISA:
+			endInterchange(null);
+			initializeState();
+			processSegmentISA(theSegment);
+			break;
+		case X12Tag.GS:
+			processSegmentGS(theSegment);
+			break;
+		case X12Tag.ST:
+			processSegmentST(theSegment);
+			break;
+		case X12Tag.SE:
+			processSegmentSE(theSegment);
+			break;
+		case X12Tag.GE:
+			processSegmentGE(theSegment);
+			break;
+		case X12Tag.IEA:
+			processSegmentIEA(theSegment);
+			break;
+		default:
+			processSegmentDetail(theSegment);
+			break;
+		}
+	}
+
+	private void processSegmentISA(X12Segment theSegment) throws X12Exception {
+		hdrState |= HDR_STATE_ISA;
+
+		handler.startInterchange(theSegment);
+	}
+
+	private void processSegmentGS(X12Segment theSegment) throws X12Exception {
+		hdrState |= HDR_STATE_GS;
+
+		handler.startGroup(theSegment);
+	}
+
+	private void processSegmentST(X12Segment theSegment) throws X12Exception {
+		if (theSegment.getElementCount() < 2) {
+			throw new X12Exception("Unexpected ST segment state");
+		}
+
+		// The previous transaction set is missing its SE
+		if (isInTransactionSet()) {
+			endTransactionSet(null);
+		}
+
+		hdrState |= HDR_STATE_ST;
+
+		// Initial these transaction set dependent objects
+		schemaLoopStack.clear();
+		x12SchemaTS = null;
+
+		handler.startTransactionSet(theSegment);
+
+		// If we have a schema retrieve the TransactionSet schema and push it on
+		// the schema stack
+		// Note: each lookup is a single get - the schema may be changed by
+		// another thread in between
+		if (x12Schema != null) {
+			String tsID = theSegment.getElement(1);
+			X12Schema.TransactionSet theTS = null;
+
+			// Attempt to find a implementation specific schema to use
+			if (theSegment.hasElement(3)) {
+				String tsImpl = theSegment.getElement(3);
+
+				// First try an exact match
+				theTS = x12Schema.getTransactionSet(tsID, tsImpl);
+
+				// If not found, look for a partial match on the implementation
+				// For example: 005010X223A2 => look for 005010X223
+				if (theTS == null && tsImpl.length() > 10) {
+					theTS = x12Schema.getTransactionSet(tsID, tsImpl.substring(0, 10));
+				}
+
+			}
+
+			// If not found try a more general version
+			if (theTS == null) {
+				theTS = x12Schema.getTransactionSet(tsID);
+			}
+
+			if (theTS != null) {
+				x12SchemaTS = theTS;
+				schemaLoopStack.push(x12SchemaTS.getCompiled(), null);
+			}
+		}
+	}
+
+	private void processSegmentSE(X12Segment theSegment) throws X12Exception {
+		endTransactionSet(theSegment);
+	}
+
+	private void processSegmentGE(X12Segment theSegment) throws X12Exception {
+		endGroup(theSegment);
+	}
+
+	private void processSegmentIEA(X12Segment theSegment) throws X12Exception {
+		endInterchange(theSegment);
+	}
+
+	// The envelopes still open inside are ended first, a null trailer
+	// tells the handler it is missing
+
+	private void endTransactionSet(X12Segment theSE) throws X12Exception {
+		hdrState &= ~HDR_STATE_ST;
+
+		// End all loops up to the TransactionSet
+		for (int i = schemaLoopStack.size(); i > 1; i--) {
+			handler.endLoop();
+		}
+		schemaLoopStack.clear();
+		x12SchemaTS = null;
+
+		handler.endTransactionSet(theSE);
+	}
+
+	private void endGroup(X12Segment theGE) throws X12Exception {
+		if (isInTransactionSet()) {
+			endTransactionSet(null);
+		}
+		if ((hdrState & HDR_STATE_GS) == HDR_STATE_GS) {
+			hdrState &= ~HDR_STATE_GS;
+
+			handler.endGroup(theGE);
+		}
+	}
+
+	private void endInterchange(X12Segment theIEA) throws X12Exception {
+		endGroup(null);
+		if ((hdrState & HDR_STATE_ISA) == HDR_STATE_ISA) {
+			hdrState &= ~HDR_STATE_ISA;
+
+			handler.endInterchange(theIEA);
+		}
+	}
+
+	private void processSegmentDetail(X12Segment theSegment) throws X12Exception {
+		if (x12SchemaTS != null && !schemaLoopStack.isEmpty()) {
+			processSegmentLoop(theSegment);
+		} else {
+			// Write out in generic fashion
+			handler.segment(theSegment);
+		}
+	}
+
+	private void processSegmentLoop(X12Segment theSegment) throws X12Exception {
+		boolean bProcess = true;
+		while (bProcess) {
+			bProcess = false;
+			SchemaLoopStack.Item loopStackItem = schemaLoopStack.current();
+			X12Schema.SegmentRule rule = getRule(theSegment, loopStackItem);
+
+			if (isLoopHL(theSegment, loopStackItem)) {
+				SchemaLoopStack.Item prevLoopHL = getPrevLoopHL(loopStackItem);
+
+				int nCloseCount = 0;
+
+				if (prevLoopHL != null) {
+					int nCompare = compareParentHL(theSegment, prevLoopHL);
+
+					if (nCompare == 0) {
+						// Same ParentHL
+						nCloseCount = searchParentLoopsHL(theSegment, loopStackItem);
+					} else if (nCompare > 0) {
+						// New Child HL
+						nCloseCount = searchParentLoops(theSegment, loopStackItem, rule);
+					} else {
+						// Search for Sibling Parent HL
+						nCloseCount = searchParentLoopsHL(theSegment, loopStackItem);
+					}
+				} else {
+					nCloseCount = searchParentLoops(theSegment, loopStackItem, rule);
+				}
+
+				// Close loops
+				closeLoop(nCloseCount);
+
+				// Reset current LoppStackItem
+				loopStackItem = schemaLoopStack.current();
+				rule = getRule(theSegment, loopStackItem);
+
+				// Create the HL segment loop
+				if (getChildLoopIndex(theSegment, loopStackItem, rule) != -1) {
+					createSegmentLoop(theSegment, loopStackItem, rule);
+				}
+			} else if (isLoopRepeater(theSegment, loopStackItem, rule)) {
+				repeatLoop(theSegment, loopStackItem);
+				handler.segment(theSegment);
+			} else if (isLoopChildStarter(theSegment, loopStackItem, rule)) {
+				createSegmentLoop(theSegment, loopStackItem, rule);
+			} else if (isLoopEnder(theSegment, loopStackItem, rule)) {
+				if (isLoopMember(theSegment, loopStackItem, rule)) {
+					handler.segment(theSegment);
+				}
+				closeLoop(1);
+			} else if (isLoopSiblingStarter(theSegment, loopStackItem, rule)) {
+				closeLoop(searchParentLoops(theSegment, loopStackItem, rule));
+
+				// Process this segment again within the parent loop
+				bProcess = true;
+			} else if (isLoopMember(theSegment, loopStackItem, rule)) {
+				handler.segment(theSegment);
+			} else if (isLoopParent(theSegment, loopStackItem, rule)) {
+				closeLoop(searchParentLoops(theSegment, loopStackItem, rule));
+
+				// Process this segment again within the parent loop
+				bProcess = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+public class X12PushParser {
+
+/*
+	Non-blocking counterpart of X12Reader. Data is pushed in with feed() as it
+	arrives (e.g. from a socket or AsynchronousFileChannel) and every complete
+	segment is handed to the Listener. A partial segment at the end of a chunk
+	stays buffered until the rest arrives. The data is scanned as raw 8-bit
+	characters, the same as X12Reader in byte mode, and the element text is
+	read as ISO-8859-1 unless a charset (US-ASCII or UTF-8) is given.
+*/
+	public interface Listener {
+		// Start of each interchange (the separators are those of theISA)
+		void interchange(ISASegment theISA) throws X12Exception;
+
+		// Every segment after the ISA. The segment object is reused - copy
+		// anything needed after the call returns.
+		void segment(X12Segment theSegment) throws X12Exception;
+	}
+
+	// readISA needs at most this many characters (the crlf133 layout)
+	private static final int ISA_ANALYZE_LENGTH = 161;
+
+	private final Listener listener;
+	private final X12Reader reader;
+	private final X12Segment segment = new X12Segment();
+	private byte[] buf = new byte[8 * 1024];
+	private int pos;
+	private int limit;
+	// Everything before scanned has been searched for a segment separator
+	// and everything before complete is whole segments
+	private int scanned;
+	private int complete;
+	private boolean finished;
+
+	public X12PushParser(Listener listener) {
+		this.listener = listener;
+		this.reader = new X12Reader(ByteBuffer.allocate(0));
+	}
+
+	public X12PushParser(Listener listener, Charset charset) throws X12Exception {
+		this.listener = listener;
+		this.reader = new X12Reader(ByteBuffer.allocate(0), charset);
+	}
+
+	public void feed(ByteBuffer theChunk) throws X12Exception {
+		if (finished) {
+			throw new X12Exception("X12 data already finished");
+		}
+
+		int length = theChunk.remaining();
+		if (limit + length > buf.length) {
+			// Drop what has been parsed, then grow if still needed
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			scanned -= pos;
+			complete -= pos;
+			limit -= pos;
+			pos = 0;
+			if (limit + length > buf.length) {
+				byte[] theBuf = new byte[Math.max(buf.length << 1, limit + length)];
+				System.arraycopy(buf, 0, theBuf, 0, limit);
+				buf = theBuf;
+			}
+		}
+		theChunk.get(buf, limit, length);
+		limit += length;
+
+		parse(false);
+	}
+
+	public void finish() throws X12Exception {
+		// No more data - whatever is buffered is parsed as it is
+		if (!finished) {
+			finished = true;
+			parse(true);
+		}
+	}
+
+	private boolean skipWhitespace() {
+		while (pos < limit && !Character.isLetterOrDigit(buf[pos] & 0xFF)) {
+			pos++;
+		}
+		return (pos < limit);
+	}
+
+	private boolean isISA() {
+		return (buf[pos] == 'I' && buf[pos + 1] == 'S' && buf[pos + 2] == 'A');
+	}
+
+	private void parse(boolean last) throws X12Exception {
+		try {
+			while (pos < limit) {
+				if (reader.getISA() == null || reader.isInterchangeEnded()) {
+					// Expecting an ISA - wait until it can be analyzed in one go
+					if (!skipWhitespace()) {
+						break;
+					}
+					int available = limit - pos;
+					if (!last && available < 3) {
+						break;
+					}
+					if (reader.getISA() == null || (available >= 3 && isISA())) {
+						if (!last && available < ISA_ANALYZE_LENGTH) {
+							break;
+						}
+						reader.setBuffer(ByteBuffer.wrap(buf, pos, available));
+						ISASegment theISA = reader.readISA();
+						pos = (int) reader.getPosition();
+						scanned = pos;
+						complete = pos;
+						listener.interchange(theISA);
+						continue;
+					}
+				}
+
+				// Only hand over complete segments (up to the last separator)
+				int end = limit;
+				if (!last) {
+					byte segByte = (byte) reader.getISA().getSegmentSeparator();
+					for (int i = limit - 1; i >= scanned; i--) {
+						if (buf[i] == segByte) {
+							complete = i + 1;
+							break;
+						}
+					}
+					scanned = limit;
+					if (complete <= pos) {
+						break;
+					}
+					end = complete;
+				}
+
+				ByteBuffer theBuffer = ByteBuffer.wrap(buf, pos, end - pos);
+				reader.setBuffer(theBuffer);
+				while (theBuffer.hasRemaining()) {
+					X12Segment theSegment = reader.readSegment(segment);
+					if (theSegment != null) {
+						listener.segment(theSegment);
+					}
+					if (reader.isInterchangeEnded()) {
+						// The next interchange may use other separators
+						break;
+					}
+				}
+				pos = theBuffer.position();
+				if (last && !reader.isInterchangeEnded()) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Not expected - the reader only sees the buffered data
+			throw new X12Exception(e);
+		}
+	}
+}
@@ -1,253 +1,1234 @@
-package com.brwsoftware.brwx12library;
-
-import java.io.BufferedReader;
-import java.io.CharArrayWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
-
-public class X12Reader {
-	private char elementSeparator = '*';
-	private char segmentSeparator = '~';
-	private static final char CR = '\r';
-	private static final char LF = '\n';
-	private static final int ANALYZE_BUFSIZE = 135;
-	private BufferedReader bufReader;
-	private SegmentWriter bufWriter;
-
-	private enum ReadModifier {
-		none, crlf80, crlf133
-	};
-
-	private ReadModifier readModifier = ReadModifier.none;
-	
-	private final class SegmentWriter extends CharArrayWriter {
-		private SegmentWriter(int initialSize){
-			super(initialSize);
-		}
-		private boolean IsNameEqual(String theName, char eleSep) {
-			synchronized (lock) {
-				if (buf.length > theName.length()) {
-					for (int i = 0; i < theName.length(); i++) {
-						if (buf[i] != theName.charAt(i)) {
-							return false;
-						}
-					}
-					// Made it here - characters match so far.
-					// If the next char is the element separator then consider
-					// it equal
-					if (buf[theName.length()] == eleSep) {
-						return true;
-					}
-				}
-				return false;
-			}
-		}
-
-		private void setWritePosition(int pos) {
-			if ((pos < 0) || (pos > count)) {
-				throw new IndexOutOfBoundsException();
-			}
-			count = pos;
-		}
-	}
-	
-	public X12Reader(InputStream theStream) {
-		bufReader = new BufferedReader(new InputStreamReader(theStream));
-	}
-
-	public void close() throws IOException {
-		if(bufReader != null) {
-			bufReader.close();
-			bufReader = null;
-		}
-	}
-	
-	public ISASegment readISA() throws IOException, X12Exception {
-		char[] theBuf = new char[ANALYZE_BUFSIZE];
-		boolean isaIdentified = false;
-
-		//Read past any whitespace
-		while (true) {
-			int theChar = bufReader.read();
-			if (theChar == -1) {
-				throw new X12Exception("Error positioning ISA");
-			}
-			if (Character.isLetterOrDigit(theChar)) {
-				theBuf[0] = (char) theChar;
-
-				//Read remaining ISA characters
-				if (bufReader.read(theBuf, 1, ISASegment.ISA_LENGTH - 1) != (ISASegment.ISA_LENGTH - 1)) {
-					throw new X12Exception("Invalid ISA length");
-				}
-				break;
-			}
-		}
-		
-		//Test for ISA tag
-		if (theBuf[0] != 'I' || theBuf[1] != 'S' || theBuf[2] != 'A') {
-			throw new X12Exception("Invalid ISA tag");
-		}
-		
-		//Limited test for element separators (don't go past 80 chars)
-		if (IsValidISAElementSeparators1(theBuf) == false) {
-			throw new X12Exception("Invalid ISA element separators");
-		}
-		
-		//Test elements separators after 80
-		if (IsValidISAElementSeparators2(theBuf) == true) {
-			isaIdentified = true;
-		} else {
-			// Test CRLF80 scenario
-			if (theBuf[80] == CR && theBuf[81] == LF) {
-				//Shifts chars after the CRLF 
-				for(int i = 80; i < (ISASegment.ISA_LENGTH - 3); i++) {
-					theBuf[i] = theBuf[i + 2];
-				}
-				//Read next 2 characters
-				if (bufReader.read(theBuf, 104, 2) != 2) {
-					throw new X12Exception("Invalid ISA length");
-				}
-				//Test for valid ISA
-				if (IsValidISAElementSeparators2(theBuf) == true) {
-					readModifier = ReadModifier.crlf80;
-					isaIdentified = true;
-				}
-			} else {
-				// Read next 29 characters to test for the CRLF133 scenario
-				if (bufReader.read(theBuf, 106, 29) != 29) {
-					throw new X12Exception("Invalid ISA length");
-				}
-				if (theBuf[133] == CR && theBuf[134] == LF) {
-					// Between 80 and the end should be all spaces
-					boolean bAllSpaces = true;
-					for (int i = 80; i < (ANALYZE_BUFSIZE - 2); i++) {
-						if (theBuf[i] != 0x20) {
-							bAllSpaces = false;
-							break;
-						}
-					}
-
-					if (bAllSpaces) {					
-						// Read another 26 chars to complete the ISA
-						if (bufReader.read(theBuf, 80, 26) != 26) {
-							throw new X12Exception("Invalid ISA length");
-						}
-						//Test for valid ISA
-						if (IsValidISAElementSeparators2(theBuf) == true) {
-							readModifier = ReadModifier.crlf133;
-							isaIdentified = true;
-						}
-					}
-				}
-			}			
-		}
-		
-		if(isaIdentified == false){
-			throw new X12Exception("Unknown X12 data");
-		}
-		
-		//Looks like valid ISA
-		ISASegment theISA = new ISASegment(Arrays.copyOfRange(theBuf, 0, ISASegment.ISA_LENGTH));
-
-		elementSeparator = theISA.getElementSeparator();
-		segmentSeparator = theISA.getSegmentSeparator();
-	
-		return theISA;
-	}
-
-	private boolean IsValidISAElementSeparators1(char[] theBuf) {
-		char eleSep = theBuf[3];
-		if (eleSep != theBuf[6] || eleSep != theBuf[17] || eleSep != theBuf[20]
-				|| eleSep != theBuf[31] || eleSep != theBuf[34]
-				|| eleSep != theBuf[50] || eleSep != theBuf[53]
-				|| eleSep != theBuf[69] || eleSep != theBuf[76]) {
-			return false;
-		}
-		return true;
-	}
-
-	private boolean IsValidISAElementSeparators2(char[] theBuf) {
-		char eleSep = theBuf[3];
-		if (eleSep != theBuf[81] || eleSep != theBuf[83]
-				|| eleSep != theBuf[89] || eleSep != theBuf[99]
-				|| eleSep != theBuf[101] || eleSep != theBuf[103]) {
-			return false;
-		}
-		return true;
-	}
-
-	public X12Segment readSegment() throws IOException, X12Exception {
-		return readSegment(null);
-	}
-	
-	public X12Segment readSegment(String name) throws IOException, X12Exception {
-		if (bufWriter == null) {
-			bufWriter = new SegmentWriter(256);
-		} else {
-			bufWriter.reset();
-		}
-
-		boolean seenCR = false;
-		boolean hasSegment = false;
-		boolean endOfStream = false;
-		X12Segment theSegment = null;
-
-		// Read the X12 stream one char at a time looking for SegmentSeparator
-		while (true) {
-			int theChar = bufReader.read();
-			if (theChar == -1) {
-				endOfStream = true;
-				break;
-			} else {
-				if (bufWriter.size() == 0) {
-					// Skip any leading whitespace
-					if (Character.isLetterOrDigit(theChar)) {
-						bufWriter.write(theChar);
-					}
-				} else if (theChar == segmentSeparator
-						|| (theChar != CR && theChar != LF && theChar != 0)) {
-					bufWriter.write(theChar);
-				}
-
-				if (readModifier == ReadModifier.crlf133) {
-					if (theChar == CR) {
-						seenCR = true;
-					} else if (seenCR && theChar == LF && bufWriter.size() >= 53) {
-						// Move the write position back to exclude all the
-						// spaces between 80 and 133
-						bufWriter.setWritePosition(bufWriter.size() - 53);
-					}
-				}
-
-				if (theChar == segmentSeparator) {
-					if (name == null) {
-						hasSegment = true;
-						break;
-					} else if (bufWriter.IsNameEqual(name, elementSeparator)) {
-						hasSegment = true;
-						break;
-					} else {
-						bufWriter.reset();
-					}
-				}
-			}
-		}
-
-		if (bufWriter.size() > 0) {
-			if (hasSegment) {
-				theSegment = new X12Segment(bufWriter.toCharArray(),
-						elementSeparator, segmentSeparator);
-			} else if (endOfStream == false) {
-				// We have data but never saw the segmentSeparator
-				// Note: if we hit the end of stream and we have data but not a
-				// segment it could be the remaining spaces of the crlf133 scenario. 
-				// We are not going to throw any exceptions for that.
-				throw new X12Exception("Invalid X12 segment");
-			}
-		}
-
-		return theSegment;
-	}
-}
+package com.brwsoftware.brwx12library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class X12Reader {
+	private char elementSeparator = '*';
+	private char segmentSeparator = '~';
+	private char componentSeparator = 0;
+	private char repetitionSeparator = 0;
+	private static final char CR = '\r';
+	private static final char LF = '\n';
+	private static final int ANALYZE_BUFSIZE = 135;
+	private static final int CHAR_BUFSIZE = 64 * 1024;
+	private static final long MAP_REGION_SIZE = 256L * 1024 * 1024;
+	private Reader charReader;
+	private char[] charBuf;
+	private int charPos;
+	private int charLimit;
+	private SegmentWriter bufWriter;
+	private ByteBuffer byteBuffer;
+	private SegmentBytes byteWriter;
+	private FileChannel fileChannel;
+	private long mapPosition;
+	private boolean ownsChannel;
+	private InputStream byteStream;
+	private long streamPosition;
+	private long segmentPosition = -1;
+	// Byte mode only - decodes the segments holding a non ASCII byte, null
+	// when every byte is read as one 8-bit character (ISO-8859-1, US-ASCII)
+	private CharsetDecoder decoder;
+	private char[] decodeBuf;
+
+	private enum ReadModifier {
+		none, crlf80, crlf133
+	};
+
+	private ReadModifier readModifier = ReadModifier.none;
+
+	// Tag filter used by readSegment(String) - cached so the call does not allocate
+	private String filterName;
+	private int[] filterTags = new int[1];
+	private static final int[] IEA_TAGS = { X12Tag.IEA };
+
+	// Interchange state - the data may hold several ISA...IEA interchanges,
+	// each with its own separators
+	private ISASegment currentISA;
+	private boolean interchangeEnded;
+	
+	private final class SegmentWriter extends CharArrayWriter {
+		private SegmentWriter(int initialSize){
+			super(initialSize);
+		}
+		private boolean IsNameEqual(String theName, char eleSep) {
+			synchronized (lock) {
+				if (count > theName.length()) {
+					for (int i = 0; i < theName.length(); i++) {
+						if (buf[i] != theName.charAt(i)) {
+							return false;
+						}
+					}
+					// Made it here - characters match so far.
+					// If the next char is the element separator then consider
+					// it equal
+					if (buf[theName.length()] == eleSep) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+
+		private void setWritePosition(int pos) {
+			if ((pos < 0) || (pos > count)) {
+				throw new IndexOutOfBoundsException();
+			}
+			count = pos;
+		}
+
+		private void fill(X12Segment theSegment) throws X12Exception {
+			theSegment.set(buf, count, elementSeparator, segmentSeparator, componentSeparator,
+					repetitionSeparator);
+		}
+
+		private int getTagCode() {
+			int code = 0;
+			for (int i = 0; i < count && i < 4; i++) {
+				if (buf[i] == elementSeparator || buf[i] == segmentSeparator) {
+					return (i < 2) ? X12Tag.NONE : code;
+				}
+				int c = X12Tag.toTagChar(buf[i]);
+				if (c == 0 || i == 3) {
+					return X12Tag.NONE;
+				}
+				code = (code << 8) | c;
+			}
+			return X12Tag.NONE;
+		}
+	}
+	
+	private final class SegmentBytes extends ByteArrayOutputStream {
+		private SegmentBytes(int initialSize){
+			super(initialSize);
+		}
+		private boolean IsNameEqual(String theName, char eleSep) {
+			synchronized (this) {
+				if (count > theName.length()) {
+					for (int i = 0; i < theName.length(); i++) {
+						if (buf[i] != theName.charAt(i)) {
+							return false;
+						}
+					}
+					// Made it here - characters match so far.
+					// If the next char is the element separator then consider
+					// it equal
+					if (buf[theName.length()] == (byte) eleSep) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+
+		private void setWritePosition(int pos) {
+			if ((pos < 0) || (pos > count)) {
+				throw new IndexOutOfBoundsException();
+			}
+			count = pos;
+		}
+
+		// Unsynchronized size() and reset() for the read loop
+		private int length() {
+			return count;
+		}
+
+		private void clear() {
+			count = 0;
+		}
+
+		private void write(ByteBuffer src, int off, int len) {
+			if (len <= 0) {
+				return;
+			}
+			if (count + len > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + len));
+			}
+			src.position(off);
+			src.get(buf, count, len);
+			count += len;
+		}
+
+		private void fill(X12Segment theSegment) throws X12Exception {
+			theSegment.set(buf, count, elementSeparator, segmentSeparator, componentSeparator,
+					repetitionSeparator);
+		}
+
+		private boolean isAscii() {
+			for (int i = 0; i < count; i++) {
+				if (buf[i] < 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private int decode(CharsetDecoder theDecoder) {
+			// Decodes the segment into decodeBuf, returns the number of chars
+			int theSize = (int) Math.ceil(theDecoder.maxCharsPerByte() * count);
+			if (decodeBuf == null || decodeBuf.length < theSize) {
+				decodeBuf = new char[Math.max(theSize, 256)];
+			}
+			CharBuffer theChars = CharBuffer.wrap(decodeBuf);
+			theDecoder.reset();
+			theDecoder.decode(ByteBuffer.wrap(buf, 0, count), theChars, true);
+			theDecoder.flush(theChars);
+			return theChars.position();
+		}
+
+		private int getTagCode() {
+			int code = 0;
+			for (int i = 0; i < count && i < 4; i++) {
+				char theChar = (char) (buf[i] & 0xFF);
+				if (theChar == elementSeparator || theChar == segmentSeparator) {
+					return (i < 2) ? X12Tag.NONE : code;
+				}
+				int c = X12Tag.toTagChar(theChar);
+				if (c == 0 || i == 3) {
+					return X12Tag.NONE;
+				}
+				code = (code << 8) | c;
+			}
+			return X12Tag.NONE;
+		}
+	}
+	
+	public X12Reader(InputStream theStream) {
+		this(theStream, Charset.defaultCharset());
+	}
+
+	public X12Reader(InputStream theStream, Charset theCharset) {
+		if (isSingleByte(theCharset)) {
+			// Byte mode - every byte is one character so the stream is read
+			// straight into a byte buffer without a CharsetDecoder
+			byteStream = theStream;
+			byteBuffer = ByteBuffer.allocate(CHAR_BUFSIZE).order(ByteOrder.LITTLE_ENDIAN);
+			byteBuffer.limit(0);
+		} else {
+			charReader = new InputStreamReader(theStream, theCharset);
+			charBuf = new char[CHAR_BUFSIZE];
+		}
+	}
+
+	public X12Reader(ByteBuffer theBuffer) {
+		// Byte mode - the data is scanned as raw 8-bit characters, no charset
+		// decoding, so the element text is read as ISO-8859-1. Use the Charset
+		// overload for UTF-8.
+		byteBuffer = theBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public X12Reader(ByteBuffer theBuffer, Charset theCharset) throws X12Exception {
+		// Byte mode with the element text decoded in theCharset. The scan still
+		// works on the bytes, so the charset must keep the ASCII separators and
+		// tags as single bytes: ISO-8859-1, US-ASCII or UTF-8.
+		this(theBuffer);
+		setCharset(theCharset);
+	}
+
+	X12Reader(ByteBuffer theBuffer, X12Reader theInterchange) {
+		// Reads part of an interchange (e.g. one transaction set) using the
+		// separators and read modifier already derived by theInterchange
+		this(theBuffer);
+		setInterchange(theInterchange);
+	}
+
+	X12Reader(InputStream theStream, Charset theCharset, X12Reader theInterchange) {
+		// Same, decoding the part with theCharset
+		this(theStream, theCharset);
+		setInterchange(theInterchange);
+	}
+
+	private void setInterchange(X12Reader theInterchange) {
+		elementSeparator = theInterchange.elementSeparator;
+		segmentSeparator = theInterchange.segmentSeparator;
+		componentSeparator = theInterchange.componentSeparator;
+		repetitionSeparator = theInterchange.repetitionSeparator;
+		readModifier = theInterchange.readModifier;
+		currentISA = theInterchange.currentISA;
+		interchangeEnded = theInterchange.interchangeEnded;
+		if (isByteMode() && theInterchange.decoder != null) {
+			decoder = newDecoder(theInterchange.decoder.charset());
+		}
+	}
+
+	public X12Reader(FileChannel theChannel) throws IOException {
+		// Byte mode - the file is memory mapped one region at a time starting
+		// at the current channel position. The element text is read as
+		// ISO-8859-1, use the Charset overload for UTF-8.
+		fileChannel = theChannel;
+		mapPosition = theChannel.position();
+		byteBuffer = ByteBuffer.allocate(0);
+	}
+
+	public X12Reader(FileChannel theChannel, Charset theCharset) throws IOException, X12Exception {
+		// ISO-8859-1, US-ASCII or UTF-8 (see X12Reader(ByteBuffer, Charset))
+		this(theChannel);
+		setCharset(theCharset);
+	}
+
+	public X12Reader(Path thePath) throws IOException {
+		// Memory mapped, read as ISO-8859-1
+		this(FileChannel.open(thePath, StandardOpenOption.READ));
+		ownsChannel = true;
+	}
+
+	public X12Reader(Path thePath, Charset theCharset) throws IOException, X12Exception {
+		// ISO-8859-1, US-ASCII or UTF-8 (see X12Reader(ByteBuffer, Charset))
+		this(thePath);
+		try {
+			setCharset(theCharset);
+		} catch (X12Exception e) {
+			close();
+			throw e;
+		}
+	}
+
+	private void setCharset(Charset theCharset) throws X12Exception {
+		if (!isAsciiCompatible(theCharset)) {
+			throw new X12Exception("Charset not supported in byte mode: " + theCharset.name());
+		}
+		if (!isSingleByte(theCharset)) {
+			decoder = newDecoder(theCharset);
+		}
+	}
+
+	private static CharsetDecoder newDecoder(Charset theCharset) {
+		// Malformed input is replaced, the same as by an InputStreamReader
+		return theCharset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	Charset getCharset() {
+		// Charset of the byte mode data
+		return (decoder != null) ? decoder.charset() : StandardCharsets.ISO_8859_1;
+	}
+
+	static boolean isSingleByte(Charset theCharset) {
+		return (StandardCharsets.ISO_8859_1.equals(theCharset) || StandardCharsets.US_ASCII.equals(theCharset));
+	}
+
+	static boolean isAsciiCompatible(Charset theCharset) {
+		// The ASCII separators and tags are single bytes in these charsets
+		return (isSingleByte(theCharset) || StandardCharsets.UTF_8.equals(theCharset));
+	}
+
+	public void close() throws IOException {
+		if(charReader != null) {
+			charReader.close();
+			charReader = null;
+		}
+		if(byteStream != null) {
+			byteStream.close();
+			byteStream = null;
+		}
+		if(fileChannel != null) {
+			if(ownsChannel) {
+				fileChannel.close();
+			}
+			fileChannel = null;
+		}
+		byteBuffer = null;
+	}
+
+	private boolean isByteMode() {
+		return (charReader == null);
+	}
+
+	private long positionOf(int index) {
+		// Offset of index in the current buffer (byte mode only)
+		if (fileChannel != null) {
+			return mapPosition - (byteBuffer.limit() - index);
+		}
+		return streamPosition + index;
+	}
+
+	long getPosition() {
+		// Offset of the next unread byte (byte mode only)
+		return positionOf(byteBuffer.position());
+	}
+
+	void setBuffer(ByteBuffer theBuffer) {
+		// Replaces the data still to be read (byte mode only). Used to hand
+		// the reader one chunk of data at a time.
+		byteBuffer = theBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	ByteBuffer getRemainingBytes() throws IOException {
+		// The unread data as one buffer, or null when that is not possible
+		// (character mode or a file too large to map in one piece)
+		if (!isByteMode() || byteStream != null) {
+			return null;
+		}
+		if (fileChannel == null) {
+			return byteBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		long start = getPosition();
+		long length = fileChannel.size() - start;
+		if (length > Integer.MAX_VALUE) {
+			return null;
+		}
+		ByteBuffer theBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		return theBuffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	boolean isInterchangeEnded() {
+		return interchangeEnded;
+	}
+
+	long getSegmentPosition() {
+		// Offset of the first byte of the last segment read (byte mode only)
+		return segmentPosition;
+	}
+
+	private boolean fillChars() throws IOException {
+		if (charPos < charLimit) {
+			return true;
+		}
+		int count = charReader.read(charBuf, 0, charBuf.length);
+		while (count == 0) {
+			count = charReader.read(charBuf, 0, charBuf.length);
+		}
+		charPos = 0;
+		charLimit = Math.max(count, 0);
+		return (count > 0);
+	}
+
+	private boolean compactChars() throws IOException {
+		// Move the unread characters to the front of the window and read more
+		// behind them. False when nothing more could be read.
+		if (charPos == 0) {
+			return false;
+		}
+		int remaining = charLimit - charPos;
+		System.arraycopy(charBuf, charPos, charBuf, 0, remaining);
+		charPos = 0;
+		charLimit = remaining;
+		int count = charReader.read(charBuf, remaining, charBuf.length - remaining);
+		if (count <= 0) {
+			return false;
+		}
+		charLimit += count;
+		return true;
+	}
+
+	private boolean fillBytes() throws IOException {
+		if (byteBuffer.hasRemaining()) {
+			return true;
+		}
+		if (byteStream != null) {
+			streamPosition += byteBuffer.limit();
+			byteBuffer.clear();
+			int count = byteStream.read(byteBuffer.array(), 0, byteBuffer.capacity());
+			while (count == 0) {
+				count = byteStream.read(byteBuffer.array(), 0, byteBuffer.capacity());
+			}
+			byteBuffer.limit(Math.max(count, 0));
+			return (count > 0);
+		}
+		if (fileChannel != null) {
+			long size = fileChannel.size();
+			if (mapPosition < size) {
+				long length = Math.min(MAP_REGION_SIZE, size - mapPosition);
+				byteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, mapPosition, length);
+				byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+				mapPosition += length;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean compactBytes() throws IOException {
+		// Stream source only - same as compactChars
+		int remaining = byteBuffer.remaining();
+		streamPosition += byteBuffer.position();
+		byteBuffer.compact();
+		int count = byteStream.read(byteBuffer.array(), remaining, byteBuffer.capacity() - remaining);
+		byteBuffer.position(0);
+		byteBuffer.limit(remaining + Math.max(count, 0));
+		return (count > 0);
+	}
+
+	private int read() throws IOException {
+		if (isByteMode()) {
+			if (!fillBytes()) {
+				return -1;
+			}
+			return byteBuffer.get() & 0xFF;
+		}
+		if (!fillChars()) {
+			return -1;
+		}
+		return charBuf[charPos++];
+	}
+
+	private int read(char[] theBuf, int off, int len) throws IOException {
+		if (isByteMode()) {
+			int count = 0;
+			while (count < len && fillBytes()) {
+				theBuf[off + count] = (char) (byteBuffer.get() & 0xFF);
+				count++;
+			}
+			return (count == 0 && len > 0) ? -1 : count;
+		}
+		int count = 0;
+		while (count < len && fillChars()) {
+			int n = Math.min(len - count, charLimit - charPos);
+			System.arraycopy(charBuf, charPos, theBuf, off + count, n);
+			charPos += n;
+			count += n;
+		}
+		return (count == 0 && len > 0) ? -1 : count;
+	}
+	
+	private boolean hasData() throws IOException {
+		return isByteMode() ? fillBytes() : fillChars();
+	}
+
+	private boolean ensureChars(int n) throws IOException {
+		// Makes at least n unread characters available in the window
+		if (charLimit - charPos >= n) {
+			return true;
+		}
+		int remaining = charLimit - charPos;
+		System.arraycopy(charBuf, charPos, charBuf, 0, remaining);
+		charPos = 0;
+		charLimit = remaining;
+		while (charLimit < n) {
+			int count = charReader.read(charBuf, charLimit, charBuf.length - charLimit);
+			if (count < 0) {
+				return false;
+			}
+			charLimit += count;
+		}
+		return true;
+	}
+
+	private boolean isISANext() throws IOException {
+		// Skips any whitespace and tests for the ISA tag without consuming it
+		if (isByteMode()) {
+			while (fillBytes()) {
+				ByteBuffer buf = byteBuffer;
+				int i = buf.position();
+				if (!Character.isLetterOrDigit(buf.get(i) & 0xFF)) {
+					buf.position(i + 1);
+					continue;
+				}
+				if (buf.remaining() < 3 && fileChannel != null && mapPosition < fileChannel.size()) {
+					// The tag is split across mapped regions - map again from here
+					mapPosition -= buf.remaining();
+					byteBuffer = ByteBuffer.allocate(0);
+					continue;
+				}
+				if (buf.remaining() < 3 && byteStream != null && compactBytes()) {
+					continue;
+				}
+				return (buf.remaining() >= 3 && buf.get(i) == 'I' && buf.get(i + 1) == 'S' && buf.get(i + 2) == 'A');
+			}
+			return false;
+		}
+		while (fillChars()) {
+			if (!Character.isLetterOrDigit(charBuf[charPos])) {
+				charPos++;
+				continue;
+			}
+			return (ensureChars(3) && charBuf[charPos] == 'I' && charBuf[charPos + 1] == 'S'
+					&& charBuf[charPos + 2] == 'A');
+		}
+		return false;
+	}
+
+	public ISASegment getISA() {
+		// The ISA of the interchange being read
+		return currentISA;
+	}
+
+	public ISASegment nextInterchange() throws IOException, X12Exception {
+		// Moves to the start of the next interchange and returns its ISA. Any
+		// unread segments of the current interchange are skipped. Returns null
+		// when there are no more interchanges.
+		while (currentISA != null && !interchangeEnded) {
+			if (readSegment(null, IEA_TAGS, null) == null) {
+				return null;
+			}
+		}
+		interchangeEnded = false;
+		if (isISANext() || (currentISA == null && hasData())) {
+			return readISA();
+		}
+		return null;
+	}
+
+	public ISASegment readISA() throws IOException, X12Exception {
+		char[] theBuf = new char[ANALYZE_BUFSIZE];
+		boolean isaIdentified = false;
+
+		// Each interchange is analyzed from scratch
+		readModifier = ReadModifier.none;
+
+		//Read past any whitespace
+		while (true) {
+			int theChar = read();
+			if (theChar == -1) {
+				throw new X12Exception("Error positioning ISA");
+			}
+			if (Character.isLetterOrDigit(theChar)) {
+				theBuf[0] = (char) theChar;
+				segmentPosition = isByteMode() ? getPosition() - 1 : -1;
+
+				//Read remaining ISA characters
+				if (read(theBuf, 1, ISASegment.ISA_LENGTH - 1) != (ISASegment.ISA_LENGTH - 1)) {
+					throw new X12Exception("Invalid ISA length");
+				}
+				break;
+			}
+		}
+		
+		//Test for ISA tag
+		if (theBuf[0] != 'I' || theBuf[1] != 'S' || theBuf[2] != 'A') {
+			throw new X12Exception("Invalid ISA tag");
+		}
+		
+		//Limited test for element separators (don't go past 80 chars)
+		if (IsValidISAElementSeparators1(theBuf) == false) {
+			throw new X12Exception("Invalid ISA element separators");
+		}
+		
+		//Test elements separators after 80
+		if (IsValidISAElementSeparators2(theBuf) == true) {
+			isaIdentified = true;
+		} else {
+			// Test CRLF80 scenario
+			if (theBuf[80] == CR && theBuf[81] == LF) {
+				//Shifts chars after the CRLF 
+				for(int i = 80; i < (ISASegment.ISA_LENGTH - 3); i++) {
+					theBuf[i] = theBuf[i + 2];
+				}
+				//Read next 2 characters
+				if (read(theBuf, 104, 2) != 2) {
+					throw new X12Exception("Invalid ISA length");
+				}
+				//Test for valid ISA
+				if (IsValidISAElementSeparators2(theBuf) == true) {
+					readModifier = ReadModifier.crlf80;
+					isaIdentified = true;
+				}
+			} else {
+				// Read next 29 characters to test for the CRLF133 scenario
+				if (read(theBuf, 106, 29) != 29) {
+					throw new X12Exception("Invalid ISA length");
+				}
+				if (theBuf[133] == CR && theBuf[134] == LF) {
+					// Between 80 and the end should be all spaces
+					boolean bAllSpaces = true;
+					for (int i = 80; i < (ANALYZE_BUFSIZE - 2); i++) {
+						if (theBuf[i] != 0x20) {
+							bAllSpaces = false;
+							break;
+						}
+					}
+
+					if (bAllSpaces) {					
+						// Read another 26 chars to complete the ISA
+						if (read(theBuf, 80, 26) != 26) {
+							throw new X12Exception("Invalid ISA length");
+						}
+						//Test for valid ISA
+						if (IsValidISAElementSeparators2(theBuf) == true) {
+							readModifier = ReadModifier.crlf133;
+							isaIdentified = true;
+						}
+					}
+				}
+			}			
+		}
+		
+		if(isaIdentified == false){
+			throw new X12Exception("Unknown X12 data");
+		}
+		
+		//Looks like valid ISA
+		ISASegment theISA = new ISASegment(Arrays.copyOfRange(theBuf, 0, ISASegment.ISA_LENGTH));
+
+		elementSeparator = theISA.getElementSeparator();
+		segmentSeparator = theISA.getSegmentSeparator();
+		componentSeparator = theISA.getComponementSeparator();
+		repetitionSeparator = theISA.hasRepetitionSeparator() ? theISA.getRepetitionSeparator() : 0;
+		if (decoder != null && (elementSeparator >= 0x80 || segmentSeparator >= 0x80
+				|| componentSeparator >= 0x80 || repetitionSeparator >= 0x80)) {
+			// It would be part of a multi-byte character
+			throw new X12Exception("X12 separator is not ASCII");
+		}
+
+		currentISA = theISA;
+		interchangeEnded = false;
+	
+		return theISA;
+	}
+
+	private boolean IsValidISAElementSeparators1(char[] theBuf) {
+		char eleSep = theBuf[3];
+		if (eleSep != theBuf[6] || eleSep != theBuf[17] || eleSep != theBuf[20]
+				|| eleSep != theBuf[31] || eleSep != theBuf[34]
+				|| eleSep != theBuf[50] || eleSep != theBuf[53]
+				|| eleSep != theBuf[69] || eleSep != theBuf[76]) {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean IsValidISAElementSeparators2(char[] theBuf) {
+		char eleSep = theBuf[3];
+		if (eleSep != theBuf[81] || eleSep != theBuf[83]
+				|| eleSep != theBuf[89] || eleSep != theBuf[99]
+				|| eleSep != theBuf[101] || eleSep != theBuf[103]) {
+			return false;
+		}
+		return true;
+	}
+
+	public X12Segment readSegment() throws IOException, X12Exception {
+		return readSegment((String) null);
+	}
+	
+	public X12Segment readSegment(String name) throws IOException, X12Exception {
+		return readSegment(name, null);
+	}
+
+	public X12Segment readSegment(X12Segment reuse) throws IOException, X12Exception {
+		return readSegment((String) null, reuse);
+	}
+
+	public X12Segment readSegment(String name, X12Segment reuse) throws IOException, X12Exception {
+		int[] tagCodes = null;
+		if (name != null) {
+			if (!name.equals(filterName)) {
+				filterName = name;
+				filterTags[0] = X12Tag.valueOf(name);
+			}
+			if (filterTags[0] != X12Tag.NONE) {
+				tagCodes = filterTags;
+			}
+		}
+		return readSegment(name, tagCodes, reuse);
+	}
+
+	public X12Segment readSegment(int[] tagCodes) throws IOException, X12Exception {
+		return readSegment(null, tagCodes, null);
+	}
+
+	public X12Segment readSegment(int[] tagCodes, X12Segment reuse) throws IOException, X12Exception {
+		// Returns the next segment whose tag code (see X12Tag) is in tagCodes.
+		// Segments with any other tag are skipped without being buffered.
+		return readSegment(null, tagCodes, reuse);
+	}
+
+	public Stream<X12Segment> segments() throws IOException {
+		// The unread segments as a stream (each one a new object). Byte mode
+		// input can be split on segment boundaries for a parallel stream.
+		// Read errors are thrown as UncheckedIOException and X12 errors as
+		// IllegalStateException. The reader itself should not be used after
+		// this call.
+		return StreamSupport.stream(new X12SegmentSpliterator(this), false);
+	}
+
+	private static boolean containsTag(int[] tagCodes, int code) {
+		for (int i = 0; i < tagCodes.length; i++) {
+			if (tagCodes[i] == code) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private X12Segment readSegment(String name, int[] tagCodes, X12Segment reuse)
+			throws IOException, X12Exception {
+		// When a segment is supplied it is refilled in place and returned,
+		// otherwise a new segment is created
+		if (interchangeEnded) {
+			// An ISA after the IEA starts a new interchange. It is read with
+			// readISA so the separators and read modifier are derived again
+			// before any of its segments are tokenized.
+			interchangeEnded = false;
+			if (isISANext()) {
+				ISASegment theISA = readISA();
+				if (isWanted(name, tagCodes, X12Tag.ISA)) {
+					if (reuse == null) {
+						return theISA.toSegment();
+					}
+					theISA.fill(reuse);
+					return reuse;
+				}
+			}
+		}
+
+		if (isByteMode()) {
+			while (true) {
+				if (tagCodes != null) {
+					skipSegmentsBytes(tagCodes);
+				}
+				if (!readSegmentBytes(name)) {
+					return null;
+				}
+				// The skip can leave a segment it could not decide on (e.g. a tag
+				// split across windows), so the tag is checked again here
+				int code = byteWriter.getTagCode();
+				if (code == X12Tag.IEA) {
+					interchangeEnded = true;
+				}
+				if (tagCodes != null ? containsTag(tagCodes, code)
+						: (name == null || byteWriter.IsNameEqual(name, elementSeparator))) {
+					break;
+				}
+				if (interchangeEnded) {
+					return readSegment(name, tagCodes, reuse);
+				}
+			}
+			if (decoder != null && !byteWriter.isAscii()) {
+				// Element text in a multi-byte charset
+				int theLength = byteWriter.decode(decoder);
+				if (reuse == null) {
+					return new X12Segment(Arrays.copyOf(decodeBuf, theLength), elementSeparator,
+							segmentSeparator, componentSeparator, repetitionSeparator);
+				}
+				reuse.set(decodeBuf, theLength, elementSeparator, segmentSeparator, componentSeparator,
+						repetitionSeparator);
+				return reuse;
+			}
+			if (reuse == null) {
+				return new X12Segment(byteWriter.toByteArray(), elementSeparator, segmentSeparator,
+						componentSeparator, repetitionSeparator);
+			}
+			byteWriter.fill(reuse);
+		} else {
+			while (true) {
+				if (tagCodes != null) {
+					skipSegmentsChars(tagCodes);
+				}
+				if (!readSegmentChars(name)) {
+					return null;
+				}
+				int code = bufWriter.getTagCode();
+				if (code == X12Tag.IEA) {
+					interchangeEnded = true;
+				}
+				if (tagCodes != null ? containsTag(tagCodes, code)
+						: (name == null || bufWriter.IsNameEqual(name, elementSeparator))) {
+					break;
+				}
+				if (interchangeEnded) {
+					return readSegment(name, tagCodes, reuse);
+				}
+			}
+			if (reuse == null) {
+				return new X12Segment(bufWriter.toCharArray(), elementSeparator, segmentSeparator,
+						componentSeparator, repetitionSeparator);
+			}
+			bufWriter.fill(reuse);
+		}
+		return reuse;
+	}
+
+	private static boolean isWanted(String name, int[] tagCodes, int code) {
+		if (tagCodes != null) {
+			return containsTag(tagCodes, code);
+		}
+		return (name == null);
+	}
+
+	private void skipSegmentsChars(int[] tagCodes) throws IOException {
+		// Positions the window at the start of the next segment whose tag is
+		// wanted. Unwanted segments are passed over by searching for the
+		// SegmentSeparator only - nothing is copied.
+		// Note: not used for crlf133 where the line padding can split a tag.
+		if (readModifier == ReadModifier.crlf133) {
+			return;
+		}
+
+		boolean skipping = false;
+		while (fillChars()) {
+			char[] buf = charBuf;
+			int limit = charLimit;
+			int i = charPos;
+
+			if (skipping) {
+				while (i < limit && buf[i] != segmentSeparator) {
+					i++;
+				}
+				if (i == limit) {
+					charPos = limit;
+					continue;
+				}
+				charPos = i + 1;
+				skipping = false;
+				continue;
+			}
+
+			// Skip any leading whitespace
+			while (i < limit && !Character.isLetterOrDigit(buf[i])) {
+				i++;
+			}
+			charPos = i;
+			if (i == limit) {
+				continue;
+			}
+
+			// Read the tag (CR/LF are ignored as they are when copying)
+			int code = 0;
+			int len = 0;
+			boolean decided = false;
+			for (; i < limit; i++) {
+				char theChar = buf[i];
+				if (theChar == elementSeparator || theChar == segmentSeparator) {
+					decided = true;
+					break;
+				}
+				if (theChar == CR || theChar == LF || theChar == 0) {
+					continue;
+				}
+				int c = X12Tag.toTagChar(theChar);
+				if (c == 0 || ++len > 3) {
+					code = X12Tag.NONE;
+					decided = true;
+					break;
+				}
+				code = (code << 8) | c;
+			}
+
+			if (!decided) {
+				// The tag runs past the window - pull it forward and try again
+				if (!compactChars()) {
+					return;
+				}
+				continue;
+			}
+
+			// IEA is always returned so a following interchange is picked up
+			if (len >= 2 && (code == X12Tag.IEA || containsTag(tagCodes, code))) {
+				return;
+			}
+
+			// Not wanted - skip to the end of this segment
+			if (buf[i] == segmentSeparator) {
+				charPos = i + 1;
+			} else {
+				charPos = i;
+				skipping = true;
+			}
+		}
+	}
+
+	private boolean readSegmentChars(String name) throws IOException, X12Exception {
+		if (bufWriter == null) {
+			bufWriter = new SegmentWriter(256);
+		} else {
+			bufWriter.reset();
+		}
+
+		boolean seenCR = false;
+		boolean hasSegment = false;
+		boolean endOfStream = false;
+
+		// Scan the buffered window for the SegmentSeparator. Runs of ordinary
+		// characters are copied in bulk; CR, LF and NUL are dropped in between.
+		while (true) {
+			if (!fillChars()) {
+				endOfStream = true;
+				break;
+			}
+
+			char[] buf = charBuf;
+			int limit = charLimit;
+			int i = charPos;
+
+			if (bufWriter.size() == 0) {
+				// Skip any leading whitespace
+				char theChar = buf[i];
+				if (!Character.isLetterOrDigit(theChar)) {
+					charPos = i + 1;
+					if (readModifier == ReadModifier.crlf133 && theChar == CR) {
+						seenCR = true;
+					}
+					if (theChar == segmentSeparator && name == null) {
+						hasSegment = true;
+						break;
+					}
+					continue;
+				}
+			}
+
+			int runStart = i;
+			boolean complete = false;
+			for (; i < limit; i++) {
+				char theChar = buf[i];
+				if (theChar == segmentSeparator) {
+					complete = true;
+					break;
+				}
+				if (theChar <= CR && (theChar == CR || theChar == LF || theChar == 0)) {
+					bufWriter.write(buf, runStart, i - runStart);
+					runStart = i + 1;
+					if (readModifier == ReadModifier.crlf133) {
+						if (theChar == CR) {
+							seenCR = true;
+						} else if (seenCR && theChar == LF && bufWriter.size() >= 53) {
+							// Move the write position back to exclude all the
+							// spaces between 80 and 133
+							bufWriter.setWritePosition(bufWriter.size() - 53);
+							if (bufWriter.size() == 0) {
+								// Back to skipping leading whitespace
+								i++;
+								break;
+							}
+						}
+					}
+				}
+			}
+
+			if (!complete) {
+				bufWriter.write(buf, runStart, i - runStart);
+				charPos = i;
+				continue;
+			}
+
+			bufWriter.write(buf, runStart, i + 1 - runStart);
+			charPos = i + 1;
+
+			if (readModifier == ReadModifier.crlf133) {
+				if (segmentSeparator == CR) {
+					seenCR = true;
+				} else if (seenCR && segmentSeparator == LF && bufWriter.size() >= 53) {
+					bufWriter.setWritePosition(bufWriter.size() - 53);
+				}
+			}
+
+			if (name == null) {
+				hasSegment = true;
+				break;
+			} else if (bufWriter.IsNameEqual(name, elementSeparator) || bufWriter.getTagCode() == X12Tag.IEA) {
+				hasSegment = true;
+				break;
+			} else {
+				bufWriter.reset();
+			}
+		}
+
+		if (bufWriter.size() > 0) {
+			if (hasSegment) {
+				return true;
+			} else if (endOfStream == false) {
+				// We have data but never saw the segmentSeparator
+				// Note: if we hit the end of stream and we have data but not a
+				// segment it could be the remaining spaces of the crlf133 scenario. 
+				// We are not going to throw any exceptions for that.
+				throw new X12Exception("Invalid X12 segment");
+			}
+		}
+
+		return false;
+	}
+
+	private void skipSegmentsBytes(int[] tagCodes) throws IOException {
+		// Same as skipSegmentsChars. A tag split across two buffers is
+		// left for readSegment to copy and check.
+		if (readModifier == ReadModifier.crlf133) {
+			return;
+		}
+
+		byte segByte = (byte) segmentSeparator;
+		byte eleByte = (byte) elementSeparator;
+		boolean skipping = false;
+		while (fillBytes()) {
+			ByteBuffer buf = byteBuffer;
+			int limit = buf.limit();
+			int i = buf.position();
+
+			if (skipping) {
+				i = X12Scanner.indexOf(buf, i, limit, segByte);
+				if (i == limit) {
+					buf.position(limit);
+					continue;
+				}
+				buf.position(i + 1);
+				skipping = false;
+				continue;
+			}
+
+			// Skip any leading whitespace
+			while (i < limit && !Character.isLetterOrDigit(buf.get(i) & 0xFF)) {
+				i++;
+			}
+			buf.position(i);
+			if (i == limit) {
+				continue;
+			}
+
+			// Read the tag (CR/LF are ignored as they are when copying)
+			int code = 0;
+			int len = 0;
+			boolean decided = false;
+			for (; i < limit; i++) {
+				byte theByte = buf.get(i);
+				if (theByte == eleByte || theByte == segByte) {
+					decided = true;
+					break;
+				}
+				if (theByte == CR || theByte == LF || theByte == 0) {
+					continue;
+				}
+				int c = X12Tag.toTagChar((char) (theByte & 0xFF));
+				if (c == 0 || ++len > 3) {
+					code = X12Tag.NONE;
+					decided = true;
+					break;
+				}
+				code = (code << 8) | c;
+			}
+
+			if (!decided) {
+				return;
+			}
+
+			// IEA is always returned so a following interchange is picked up
+			if (len >= 2 && (code == X12Tag.IEA || containsTag(tagCodes, code))) {
+				return;
+			}
+
+			// Not wanted - skip to the end of this segment
+			if (buf.get(i) == segByte) {
+				buf.position(i + 1);
+			} else {
+				buf.position(i);
+				skipping = true;
+			}
+		}
+	}
+
+	private boolean readSegmentBytes(String name) throws IOException, X12Exception {
+		if (byteWriter == null) {
+			byteWriter = new SegmentBytes(256);
+		} else {
+			byteWriter.clear();
+		}
+
+		boolean seenCR = false;
+		boolean hasSegment = false;
+		boolean endOfStream = false;
+		byte segByte = (byte) segmentSeparator;
+
+		// Same scan as the character path but over raw bytes
+		while (true) {
+			if (!fillBytes()) {
+				endOfStream = true;
+				break;
+			}
+
+			ByteBuffer buf = byteBuffer;
+			int limit = buf.limit();
+			int i = buf.position();
+
+			if (byteWriter.length() == 0) {
+				// Skip any leading whitespace
+				int theChar = buf.get(i) & 0xFF;
+				if (!Character.isLetterOrDigit(theChar)) {
+					buf.position(i + 1);
+					if (readModifier == ReadModifier.crlf133 && theChar == CR) {
+						seenCR = true;
+					}
+					if (theChar == segmentSeparator && name == null) {
+						hasSegment = true;
+						break;
+					}
+					continue;
+				}
+				segmentPosition = positionOf(i);
+			}
+
+			int runStart = i;
+			boolean complete = false;
+			while (true) {
+				// Jump (8 bytes at a time) to the next byte that needs attention
+				i = X12Scanner.findSegmentBreak(buf, i, limit, segByte);
+				if (i == limit) {
+					break;
+				}
+				byte theByte = buf.get(i);
+				if (theByte == segByte) {
+					complete = true;
+					break;
+				}
+
+				// CR, LF or NUL
+				byteWriter.write(buf, runStart, i - runStart);
+				runStart = ++i;
+				if (readModifier == ReadModifier.crlf133) {
+					if (theByte == CR) {
+						seenCR = true;
+					} else if (seenCR && theByte == LF && byteWriter.length() >= 53) {
+						// Move the write position back to exclude all the
+						// spaces between 80 and 133
+						byteWriter.setWritePosition(byteWriter.length() - 53);
+						if (byteWriter.length() == 0) {
+							// Back to skipping leading whitespace
+							break;
+						}
+					}
+				}
+			}
+
+			if (!complete) {
+				byteWriter.write(buf, runStart, i - runStart);
+				buf.position(i);
+				continue;
+			}
+
+			byteWriter.write(buf, runStart, i + 1 - runStart);
+			buf.position(i + 1);
+
+			if (readModifier == ReadModifier.crlf133) {
+				if (segmentSeparator == CR) {
+					seenCR = true;
+				} else if (seenCR && segmentSeparator == LF && byteWriter.length() >= 53) {
+					byteWriter.setWritePosition(byteWriter.length() - 53);
+				}
+			}
+
+			if (name == null) {
+				hasSegment = true;
+				break;
+			} else if (byteWriter.IsNameEqual(name, elementSeparator) || byteWriter.getTagCode() == X12Tag.IEA) {
+				hasSegment = true;
+				break;
+			} else {
+				byteWriter.clear();
+			}
+		}
+
+		if (byteWriter.length() > 0) {
+			if (hasSegment) {
+				return true;
+			} else if (endOfStream == false) {
+				throw new X12Exception("Invalid X12 segment");
+			}
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,133 @@
+package com.brwsoftware.brwx12library;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+final class X12Scanner {
+
+/*
+	Separator search over raw bytes, 8 bytes at a time (SWAR - SIMD within a
+	register). Each long read from the buffer is XORed with the separator
+	repeated in every byte, which turns matching bytes into zero bytes, and
+	zeroMask() then flags the zero bytes. Buffers must be LITTLE_ENDIAN so bit
+	n of a mask belongs to byte n of the block.
+*/
+	static final int BLOCK_SIZE = 64;
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+	private static final long HIGH = 0x8080808080808080L;
+	private static final long PATTERN_CR = pattern((byte) '\r');
+	private static final long PATTERN_LF = pattern((byte) '\n');
+
+	private X12Scanner() {
+	}
+
+	static long pattern(byte b) {
+		return (b & 0xFFL) * ONES;
+	}
+
+	static ByteBuffer wrap(byte[] data) {
+		return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long zeroMask(long word) {
+		// High bit set in every byte lane of word that is zero. Unlike the
+		// shorter (x - ONES) & ~x & HIGH form there are no false positives,
+		// so the result can be used as a bitmap.
+		return ~(((word & LOW7) + LOW7) | word | LOW7);
+	}
+
+	private static int lanes(long mask) {
+		// Gather the high bit of each lane into the low 8 bits
+		return (int) (((mask & HIGH) >>> 7) * 0x0102040810204080L >>> 56);
+	}
+
+	static long scanBlock(ByteBuffer buf, int offset, long pattern1, long pattern2) {
+		// Bitmap of the bytes in [offset, offset + 64) equal to either pattern
+		long bitmap = 0;
+		for (int w = 0; w < 8; w++) {
+			long word = buf.getLong(offset + (w << 3));
+			long mask = zeroMask(word ^ pattern1) | zeroMask(word ^ pattern2);
+			bitmap |= ((long) lanes(mask)) << (w << 3);
+		}
+		return bitmap;
+	}
+
+	static int countSeparators(ByteBuffer buf, int length, byte sep1, byte sep2) {
+		long pattern1 = pattern(sep1);
+		long pattern2 = pattern(sep2);
+		int count = 0;
+		int i = 0;
+		for (; i + BLOCK_SIZE <= length; i += BLOCK_SIZE) {
+			count += Long.bitCount(scanBlock(buf, i, pattern1, pattern2));
+		}
+		for (; i < length; i++) {
+			byte b = buf.get(i);
+			if (b == sep1 || b == sep2) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	static void findSeparators(ByteBuffer buf, int length, byte sep1, byte sep2, int[] positions, int count) {
+		// Fills positions with the first count separator positions
+		long pattern1 = pattern(sep1);
+		long pattern2 = pattern(sep2);
+		int n = 0;
+		int i = 0;
+		for (; i + BLOCK_SIZE <= length && n < count; i += BLOCK_SIZE) {
+			long bitmap = scanBlock(buf, i, pattern1, pattern2);
+			while (bitmap != 0 && n < count) {
+				positions[n++] = i + Long.numberOfTrailingZeros(bitmap);
+				bitmap &= bitmap - 1;
+			}
+		}
+		for (; i < length && n < count; i++) {
+			byte b = buf.get(i);
+			if (b == sep1 || b == sep2) {
+				positions[n++] = i;
+			}
+		}
+	}
+
+	static int findSegmentBreak(ByteBuffer buf, int from, int to, byte segSep) {
+		// Index of the first byte in [from, to) that is the segment separator,
+		// CR, LF or NUL - the only bytes the segment scan has to stop for.
+		// Returns to when there is none.
+		long segPattern = pattern(segSep);
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long word = buf.getLong(i);
+			long mask = zeroMask(word ^ segPattern) | zeroMask(word ^ PATTERN_CR)
+					| zeroMask(word ^ PATTERN_LF) | zeroMask(word);
+			if (mask != 0) {
+				return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+			}
+		}
+		for (; i < to; i++) {
+			byte b = buf.get(i);
+			if (b == segSep || b == '\r' || b == '\n' || b == 0) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+		long bytePattern = pattern(b);
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long mask = zeroMask(buf.getLong(i) ^ bytePattern);
+			if (mask != 0) {
+				return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+			}
+		}
+		for (; i < to; i++) {
+			if (buf.get(i) == b) {
+				return i;
+			}
+		}
+		return to;
+	}
+}
@@ -1,369 +1,699 @@
-package com.brwsoftware.brwx12library;
-
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.HashMap;
-
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamConstants;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
-
-public class X12Schema {
-
-	public X12Schema() {
-		transactionSetMap = new HashMap<String, TransactionSet>();
-	}
-	
-	public static final int INFINITE_REPEAT = -1;
-	private HashMap<String, TransactionSet> transactionSetMap;
-	private XMLInputFactory xmlInputFactory;
-
-	public final class SegmentMap {
-		public SegmentMap(){
-			itemMap = new HashMap<String, Item>();
-		}
-		
-		private final class Item {
-			public Item(String id) {
-				super();
-				this.id = id;
-				this.repetition = 1;
-			}
-			public Item(String id, int repetition) {
-				super();
-				this.id = id;
-				this.repetition = repetition;
-			}
-			private String id;
-			private int repetition;
-
-			@SuppressWarnings("unused")
-			public String getId() {
-				return id;
-			}
-			@SuppressWarnings("unused")
-			public int getRepetition() {
-				return repetition;
-			}
-		}
-		
-		private HashMap<String, Item> itemMap;
-		
-		@SuppressWarnings("unused")
-		private void add(String id) {
-			itemMap.put(id, new Item(id));
-		}
-		private void add(String id, int repetition) {
-			itemMap.put(id, new Item(id, repetition));
-		}
-		private boolean has(String id) {
-			return itemMap.containsKey(id);
-		}
-		private Item get(String id) {
-			return itemMap.get(id);
-		}
-	}
-	
-	public class Loop {
-		
-		public Loop() {
-			dataSegmentMap = new SegmentMap();
-			loopArray = new ArrayList<Loop>();
-			attributes = new Attributes();
-		}
-		public Loop(Attributes attributes) {
-			super();
-			this.attributes = attributes;
-			dataSegmentMap = new SegmentMap();
-			loopArray = new ArrayList<Loop>();
-		}
-		
-		public final class Attributes {
-			private String loopId;
-			private int repetition;
-			private String startSegment;
-			private String endSegment;
-			private String startSegmentData;
-			
-			public String getLoopId() {
-				return loopId;
-			}
-			public void setLoopId(String loopId) {
-				this.loopId = loopId;
-			}
-			public int getRepetition() {
-				return repetition;
-			}
-			public void setRepetition(int repetition) {
-				this.repetition = repetition;
-			}
-			public String getStartSegment() {
-				return startSegment;
-			}
-			public void setStartSegment(String startSegment) {
-				this.startSegment = startSegment;
-			}
-			public String getEndSegment() {
-				return endSegment;
-			}
-			public void setEndSegment(String endSegment) {
-				this.endSegment = endSegment;
-			}
-			public boolean hasStartSegmentData() {
-				return (startSegmentData != null && !startSegmentData.isEmpty());
-			}
-			public String getStartSegmentData() {
-				return startSegmentData;
-			}
-			public void setStartSegmentData(String startSegmentData) {
-				this.startSegmentData = startSegmentData;
-			}
-		}
-		
-		private SegmentMap dataSegmentMap;
-		private	ArrayList<Loop> loopArray;
-		private Attributes attributes;
-
-		// DataSegment
-		public void addDataSegment(String id) {
-			addDataSegment(id, 1);
-		}		
-		public void addDataSegment(String id, int repetition) {
-			dataSegmentMap.add(id, repetition);
-		}
-		public boolean hasDataSegment(String id) {
-			return dataSegmentMap.has(id);
-		}
-		public SegmentMap.Item getDataSegment(String id) {
-			return dataSegmentMap.get(id);
-		}
-		
-		// Loop Attributes
-		protected void setAttributes(Attributes attributes) {
-			this.attributes = attributes;
-		}
-		public String getLoopID() {
-			return attributes.loopId;
-		}
-		public int getRepetition() {
-			return attributes.repetition;
-		}
-		public boolean isStartingSegment(String id, String data) {
-			boolean isStartingSegment = false;
-
-			if (attributes.hasStartSegmentData()) {
-				if (data == null) {
-					isStartingSegment = (attributes.getStartSegment().compareToIgnoreCase(id) == 0);
-				} else {
-					isStartingSegment = ((attributes.getStartSegment().compareToIgnoreCase(id) == 0)
-							&& (attributes.getStartSegmentData().compareToIgnoreCase(data) == 0));
-				}
-
-			} else {
-				isStartingSegment = (attributes.getStartSegment().compareToIgnoreCase(id) == 0);
-			}
-			return isStartingSegment;
-		}
-		public boolean hasEndingSegment() {
-			return attributes.getEndSegment() != null && attributes.getEndSegment().length() != 0;
-		}
-		public boolean isEndingSegment(String id) {
-			return (attributes.getEndSegment().compareToIgnoreCase(id) == 0);
-		}
-
-		// Child Loops
-		int getLoopCount() {
-			return loopArray.size();
-		}
-		Loop getLoopAt(int i) {
-			return loopArray.get(i);
-		}
-		Loop newLoop(Attributes theAttr) {
-			Loop theLoop = new Loop(theAttr);
-			loopArray.add(theLoop);
-			return theLoop;
-		}
-	}
-	
-	public final class TransactionSet extends X12Schema.Loop {
-
-		public TransactionSet() {
-			super();
-
-			Attributes theAttr = new Attributes();
-			theAttr.setStartSegment("ST");
-			theAttr.setEndSegment("SE");
-			this.setAttributes(theAttr);
-		}
-		
-		public TransactionSet(String id) {
-			super();
-			this.id = id;
-
-			Attributes theAttr = new Attributes();
-			theAttr.setStartSegment("ST");
-			theAttr.setEndSegment("SE");
-			this.setAttributes(theAttr);
-		}
-
-		private String id;
-
-		public String getId() {
-			return id;
-		}
-	}
-	
-	private void addTransactionSet(XMLStreamReader xmlReader) throws X12Exception, XMLStreamException {
-		// Find the TransactionSetID and implementation
-		String id = null;
-		String impl = null;
-		for(int i=0; i < xmlReader.getAttributeCount(); i++) {
-			if(xmlReader.getAttributeLocalName(i).compareToIgnoreCase("id") == 0) {
-				id = xmlReader.getAttributeValue(i);
-			} else if(xmlReader.getAttributeLocalName(i).compareToIgnoreCase("impl") == 0) {
-				impl = xmlReader.getAttributeValue(i);
-			}
-		}
-		
-		if(id == null || id.length() == 0) {
-			throw new X12Exception("TransactionSet ID not found");
-		}
-		
-		//Ensure the current TransactionSet is cleaned up if its being replaced
-		if(hasTransactionSet(id, impl))
-		{
-			removeTransactionSet(id, impl);
-		}
-		
-		//Create the TransactionSet object
-		TransactionSet ts = new TransactionSet(id);
-		transactionSetMap.put(makeTSID(id, impl), ts);		
-		
-		while(xmlReader.hasNext()) {
-			int eventType = xmlReader.next();
-			if(eventType == XMLStreamConstants.START_ELEMENT) {
-				String name = xmlReader.getLocalName();
-				if(name.compareToIgnoreCase("Segment") == 0) {
-					addSegment(ts, xmlReader);
-				} else if(name.compareToIgnoreCase("Loop") == 0) {
-					addLoop(ts, xmlReader);
-				}
-			}
-		}
-	}
-	private void addSegment(Loop ts, XMLStreamReader xmlReader) throws X12Exception {
-		String id = null;
-		int repetition = 1;
-		for(int i=0; i < xmlReader.getAttributeCount(); i++) {
-			String name = xmlReader.getAttributeLocalName(i);
-			if(name.compareToIgnoreCase("id") == 0) {
-				id = xmlReader.getAttributeValue(i);
-			} else if(name.compareToIgnoreCase("Repetition") == 0) {
-				repetition = Integer.parseInt(xmlReader.getAttributeValue(i));
-			}
-		}
-		
-		if(id == null || id.length() == 0) {
-			throw new X12Exception("Segment ID not found");
-		}
-				
-		ts.addDataSegment(id, repetition);
-	}
-	private void addLoop(Loop currentLoop, XMLStreamReader xmlReader) throws X12Exception, XMLStreamException {
-		Loop.Attributes theAttr = currentLoop.new Attributes();
-		getLoopAttributes(theAttr, xmlReader);
-
-		if(theAttr.getLoopId() == null || theAttr.getLoopId().length() == 0 || 
-				theAttr.getStartSegment() == null || theAttr.getStartSegment().length() == 0) {		
-			throw new X12Exception("Loop attributes not found");
-		}
-
-		//Create the loop object
-		Loop theNewLoop = currentLoop.newLoop(theAttr);
-
-		boolean continueLoop = true;
-		while(continueLoop && xmlReader.hasNext()) {
-			switch(xmlReader.next()) {
-			case XMLStreamConstants.START_ELEMENT:
-				String name = xmlReader.getLocalName();
-				if(name.compareToIgnoreCase("Segment") == 0) {
-					addSegment(theNewLoop, xmlReader);
-				} else if(name.compareToIgnoreCase("Loop") == 0) {
-					addLoop(theNewLoop, xmlReader);
-				}
-				break;
-			case XMLStreamConstants.END_ELEMENT:
-				if(xmlReader.getLocalName().compareToIgnoreCase("Loop") == 0) {
-					continueLoop = false;
-				}
-				break;
-			}
-		}
-	}
-	private void getLoopAttributes(Loop.Attributes theAttr, XMLStreamReader xmlReader)
-	{
-		for(int i=0; i < xmlReader.getAttributeCount(); i++) {
-			String name = xmlReader.getAttributeLocalName(i);
-			if(name.compareToIgnoreCase("id") == 0) {
-				theAttr.setLoopId(xmlReader.getAttributeValue(i));
-			} else if(name.compareToIgnoreCase("Repetition") == 0) {
-				theAttr.setRepetition(Integer.parseInt(xmlReader.getAttributeValue(i)));
-			} else if(name.compareToIgnoreCase("StartSegment") == 0) {
-				theAttr.setStartSegment(xmlReader.getAttributeValue(i));
-			} else if(name.compareToIgnoreCase("StartSegmentData") == 0) {
-				theAttr.setStartSegmentData(xmlReader.getAttributeValue(i));
-			} else if(name.compareToIgnoreCase("EndSegment") == 0) {
-				theAttr.setEndSegment(xmlReader.getAttributeValue(i));
-			}
-		}
-	}
-	private String makeTSID(String id, String impl) {
-		String theTSID = null;
-		if(id != null && impl != null && !impl.isEmpty()) {
-			theTSID = String.format("%s/%s", id, impl);
-		}
-		else if(id != null && !id.isEmpty()) {
-			theTSID = id;
-		}
-		return theTSID;
-	}
-	
-	public void removeTransactionSet(String id) {
-		transactionSetMap.remove(makeTSID(id, null));
-	}
-	public void removeTransactionSet(String id, String impl) {
-		transactionSetMap.remove(makeTSID(id, impl));
-	}
-	public void removeAllTransactionSets() {
-		transactionSetMap.clear();
-	}
-	public boolean hasTransactionSet(String id) {
-		return transactionSetMap.containsKey(makeTSID(id, null));
-	}
-	public boolean hasTransactionSet(String id, String impl) {
-		return transactionSetMap.containsKey(makeTSID(id, impl));
-	}
-	public TransactionSet getTransactionSet(String id) {
-		return transactionSetMap.get(makeTSID(id, null));
-	}
-	public TransactionSet getTransactionSet(String id, String impl) {
-		return transactionSetMap.get(makeTSID(id, impl));
-	}
-	public void addTransactionSet(InputStream theStream) throws XMLStreamException, X12Exception {
-		// Ensure the factory
-		if (xmlInputFactory == null) {
-			xmlInputFactory = XMLInputFactory.newInstance();
-		}
-		
-		XMLStreamReader xmlReader = xmlInputFactory.createXMLStreamReader(theStream);
-		
-		while(xmlReader.hasNext()) {
-			int eventType = xmlReader.next();
-			if(eventType == XMLStreamConstants.START_ELEMENT) {
-				addTransactionSet(xmlReader);
-			}
-		}
-	}
-
+package com.brwsoftware.brwx12library;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class X12Schema {
+
+	public X12Schema() {
+		transactionSetMap = new ConcurrentHashMap<String, TransactionSet>();
+	}
+	
+	public static final int INFINITE_REPEAT = -1;
+	// Looked up by converters on any thread while others may be added, so a
+	// transaction set is only put in the map once it is complete
+	private final ConcurrentHashMap<String, TransactionSet> transactionSetMap;
+	// Only used while adding (see addTransactionSet)
+	private XMLInputFactory xmlInputFactory;
+
+	public final class SegmentMap {
+		public SegmentMap(){
+			codes = new int[8];
+			items = new Item[8];
+		}
+		
+		private final class Item {
+			public Item(String id) {
+				super();
+				this.id = id;
+				this.repetition = 1;
+			}
+			public Item(String id, int repetition) {
+				super();
+				this.id = id;
+				this.repetition = repetition;
+			}
+			private String id;
+			private int repetition;
+
+			@SuppressWarnings("unused")
+			public String getId() {
+				return id;
+			}
+			@SuppressWarnings("unused")
+			public int getRepetition() {
+				return repetition;
+			}
+		}
+		
+		// Keyed by segment tag code (see X12Tag). A loop only has a handful of
+		// segments so a linear scan of the codes beats hashing.
+		private int[] codes;
+		private Item[] items;
+		private int count;
+		
+		@SuppressWarnings("unused")
+		private void add(String id) {
+			add(id, 1);
+		}
+		private void add(String id, int repetition) {
+			int index = indexOf(id);
+			if (index < 0) {
+				if (count == codes.length) {
+					codes = Arrays.copyOf(codes, count << 1);
+					items = Arrays.copyOf(items, count << 1);
+				}
+				index = count++;
+			}
+			codes[index] = X12Tag.valueOf(id);
+			items[index] = new Item(id, repetition);
+		}
+		private int indexOf(int code) {
+			if (code != X12Tag.NONE) {
+				for (int i = 0; i < count; i++) {
+					if (codes[i] == code) {
+						return i;
+					}
+				}
+			}
+			return -1;
+		}
+		private int indexOf(String id) {
+			int code = X12Tag.valueOf(id);
+			if (code != X12Tag.NONE) {
+				return indexOf(code);
+			}
+			// Not a standard segment ID - fall back to the string
+			for (int i = 0; i < count; i++) {
+				if (items[i].id.equals(id)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		private boolean has(String id) {
+			return indexOf(id) >= 0;
+		}
+		private boolean has(int code) {
+			return indexOf(code) >= 0;
+		}
+		private Item get(String id) {
+			int index = indexOf(id);
+			return (index < 0) ? null : items[index];
+		}
+	}
+	
+	public class Loop {
+		
+		public Loop() {
+			dataSegmentMap = new SegmentMap();
+			loopArray = new ArrayList<Loop>();
+			attributes = new Attributes();
+		}
+		public Loop(Attributes attributes) {
+			super();
+			this.attributes = attributes;
+			dataSegmentMap = new SegmentMap();
+			loopArray = new ArrayList<Loop>();
+		}
+		
+		public final class Attributes {
+			private String loopId;
+			private int repetition;
+			private String startSegment;
+			private String endSegment;
+			private String startSegmentData;
+			private int startSegmentCode;
+			private int endSegmentCode;
+			
+			public String getLoopId() {
+				return loopId;
+			}
+			public void setLoopId(String loopId) {
+				this.loopId = loopId;
+			}
+			public int getRepetition() {
+				return repetition;
+			}
+			public void setRepetition(int repetition) {
+				this.repetition = repetition;
+				changed();
+			}
+			public String getStartSegment() {
+				return startSegment;
+			}
+			public void setStartSegment(String startSegment) {
+				this.startSegment = startSegment;
+				this.startSegmentCode = X12Tag.valueOf(startSegment);
+				changed();
+			}
+			public int getStartSegmentCode() {
+				return startSegmentCode;
+			}
+			public String getEndSegment() {
+				return endSegment;
+			}
+			public void setEndSegment(String endSegment) {
+				this.endSegment = endSegment;
+				this.endSegmentCode = X12Tag.valueOf(endSegment);
+				changed();
+			}
+			public int getEndSegmentCode() {
+				return endSegmentCode;
+			}
+			public boolean hasStartSegmentData() {
+				return (startSegmentData != null && !startSegmentData.isEmpty());
+			}
+			public String getStartSegmentData() {
+				return startSegmentData;
+			}
+			public void setStartSegmentData(String startSegmentData) {
+				this.startSegmentData = startSegmentData;
+				changed();
+			}
+		}
+		
+		private SegmentMap dataSegmentMap;
+		private	ArrayList<Loop> loopArray;
+		private Attributes attributes;
+		private Loop parent;
+
+		void changed() {
+			// Drop the compiled form of the enclosing TransactionSet
+			Loop theRoot = this;
+			while (theRoot.parent != null) {
+				theRoot = theRoot.parent;
+			}
+			if (theRoot instanceof TransactionSet) {
+				((TransactionSet) theRoot).compiled = null;
+			}
+		}
+
+		// DataSegment
+		public void addDataSegment(String id) {
+			addDataSegment(id, 1);
+		}		
+		public void addDataSegment(String id, int repetition) {
+			dataSegmentMap.add(id, repetition);
+			changed();
+		}
+		public boolean hasDataSegment(String id) {
+			return dataSegmentMap.has(id);
+		}
+		public boolean hasDataSegment(int tagCode) {
+			return dataSegmentMap.has(tagCode);
+		}
+		public boolean hasDataSegment(X12Segment seg) {
+			if (seg.getTagCode() == X12Tag.NONE) {
+				return seg.getElementCount() > 0 && dataSegmentMap.has(seg.getElement(0));
+			}
+			return dataSegmentMap.has(seg.getTagCode());
+		}
+		public SegmentMap.Item getDataSegment(String id) {
+			return dataSegmentMap.get(id);
+		}
+		
+		// Loop Attributes
+		protected void setAttributes(Attributes attributes) {
+			this.attributes = attributes;
+			changed();
+		}
+		public String getLoopID() {
+			return attributes.loopId;
+		}
+		public int getRepetition() {
+			return attributes.repetition;
+		}
+		public boolean isStartingSegment(String id, String data) {
+			boolean isStartingSegment = false;
+
+			if (attributes.hasStartSegmentData()) {
+				if (data == null) {
+					isStartingSegment = (attributes.getStartSegment().compareToIgnoreCase(id) == 0);
+				} else {
+					isStartingSegment = ((attributes.getStartSegment().compareToIgnoreCase(id) == 0)
+							&& (attributes.getStartSegmentData().compareToIgnoreCase(data) == 0));
+				}
+
+			} else {
+				isStartingSegment = (attributes.getStartSegment().compareToIgnoreCase(id) == 0);
+			}
+			return isStartingSegment;
+		}
+		public boolean isStartingSegment(X12Segment seg) {
+			// Same test as isStartingSegment(String, String) without copying the elements
+			int code = attributes.getStartSegmentCode();
+			if (code != X12Tag.NONE ? !seg.isTag(code) : !seg.elementEqualsIgnoreCase(0, attributes.getStartSegment())) {
+				return false;
+			}
+			if (attributes.hasStartSegmentData() && seg.hasElement(1)) {
+				return seg.elementEqualsIgnoreCase(1, attributes.getStartSegmentData());
+			}
+			return true;
+		}
+		public boolean hasEndingSegment() {
+			return attributes.getEndSegment() != null && attributes.getEndSegment().length() != 0;
+		}
+		public boolean isEndingSegment(String id) {
+			return (attributes.getEndSegment().compareToIgnoreCase(id) == 0);
+		}
+		public boolean isEndingSegment(X12Segment seg) {
+			int code = attributes.getEndSegmentCode();
+			if (code != X12Tag.NONE) {
+				return seg.isTag(code);
+			}
+			return seg.elementEqualsIgnoreCase(0, attributes.getEndSegment());
+		}
+
+		// Child Loops
+		int getLoopCount() {
+			return loopArray.size();
+		}
+		Loop getLoopAt(int i) {
+			return loopArray.get(i);
+		}
+		Loop newLoop(Attributes theAttr) {
+			Loop theLoop = new Loop(theAttr);
+			theLoop.parent = this;
+			loopArray.add(theLoop);
+			changed();
+			return theLoop;
+		}
+	}
+	
+	public final class TransactionSet extends X12Schema.Loop {
+
+		public TransactionSet() {
+			super();
+
+			Attributes theAttr = new Attributes();
+			theAttr.setStartSegment("ST");
+			theAttr.setEndSegment("SE");
+			this.setAttributes(theAttr);
+		}
+		
+		public TransactionSet(String id) {
+			super();
+			this.id = id;
+
+			Attributes theAttr = new Attributes();
+			theAttr.setStartSegment("ST");
+			theAttr.setEndSegment("SE");
+			this.setAttributes(theAttr);
+		}
+
+		private String id;
+		private volatile CompiledLoop compiled;
+
+		public String getId() {
+			return id;
+		}
+
+		CompiledLoop getCompiled() {
+			// Compiled on first use and again after the schema changes
+			CompiledLoop theCompiled = compiled;
+			if (theCompiled == null) {
+				theCompiled = new CompiledLoop(this, null);
+				theCompiled.compile(getCodes(this, new HashSet<Integer>()));
+				compiled = theCompiled;
+			}
+			return theCompiled;
+		}
+
+		private HashSet<Integer> getCodes(Loop theLoop, HashSet<Integer> theCodes) {
+			// Every tag code used by the loop and its children
+			for (int i = 0; i < theLoop.dataSegmentMap.count; i++) {
+				theCodes.add(theLoop.dataSegmentMap.codes[i]);
+			}
+			theCodes.add(theLoop.attributes.getStartSegmentCode());
+			theCodes.add(theLoop.attributes.getEndSegmentCode());
+			for (Loop theChild : theLoop.loopArray) {
+				getCodes(theChild, theCodes);
+			}
+			// Non-standard IDs are matched by X12Segment when converting
+			theCodes.remove(X12Tag.NONE);
+			return theCodes;
+		}
+	}
+
+	// What a segment can do in a loop. Only the parts that do not change
+	// while converting are kept here - repetition counts and the
+	// StartSegmentData qualifier are still tested by X12LoopParser
+	// (isLoopRepeater, isLoopMember and getChildLoopIndex).
+	static final class SegmentRule {
+		private static final int[] NONE = new int[0];
+
+		private boolean member;
+		private boolean ender;
+		private boolean starter;
+		private boolean siblingStarter;
+		// Children started by the segment, in schema order
+		private int[] childLoops = NONE;
+		// Ancestors (1 is the parent) that may take the segment
+		private int[] parentLevels = NONE;
+
+		boolean isMember() {
+			return member;
+		}
+
+		boolean isEnder() {
+			return ender;
+		}
+
+		boolean isStarter() {
+			return starter;
+		}
+
+		boolean isSiblingStarter() {
+			return siblingStarter;
+		}
+
+		int[] getChildLoops() {
+			return childLoops;
+		}
+
+		int[] getParentLevels() {
+			return parentLevels;
+		}
+	}
+
+	// Compiled form of a Loop and its children. Each loop has a hash table
+	// from segment tag code to SegmentRule so a segment is resolved with a
+	// lookup instead of testing every rule of every loop. Immutable once
+	// compiled.
+	static final class CompiledLoop {
+		private final Loop loop;
+		private final CompiledLoop parent;
+		private final CompiledLoop[] children;
+		// Open addressing, a code of X12Tag.NONE is an empty slot
+		private int[] codes;
+		private SegmentRule[] rules;
+		private int mask;
+
+		private CompiledLoop(Loop loop, CompiledLoop parent) {
+			this.loop = loop;
+			this.parent = parent;
+			children = new CompiledLoop[loop.getLoopCount()];
+			for (int i = 0; i < children.length; i++) {
+				children[i] = new CompiledLoop(loop.getLoopAt(i), this);
+			}
+		}
+
+		Loop getLoop() {
+			return loop;
+		}
+
+		CompiledLoop getChild(int index) {
+			return children[index];
+		}
+
+		int getChildCount() {
+			return children.length;
+		}
+
+		SegmentRule getRule(X12Segment seg) {
+			// null when the segment has nothing to do with the loop
+			int code = seg.getTagCode();
+			if (code == X12Tag.NONE) {
+				// Not a standard tag so not in the table
+				return newRule(code, seg);
+			}
+			int i = hash(code) & mask;
+			while (codes[i] != X12Tag.NONE) {
+				if (codes[i] == code) {
+					return rules[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		private static int hash(int code) {
+			int h = code * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		private void compile(HashSet<Integer> theCodes) {
+			int size = 8;
+			while (size < theCodes.size() * 2) {
+				size <<= 1;
+			}
+			codes = new int[size];
+			rules = new SegmentRule[size];
+			mask = size - 1;
+			for (int code : theCodes) {
+				SegmentRule theRule = newRule(code, null);
+				if (theRule != null) {
+					int i = hash(code) & mask;
+					while (codes[i] != X12Tag.NONE) {
+						i = (i + 1) & mask;
+					}
+					codes[i] = code;
+					rules[i] = theRule;
+				}
+			}
+			for (CompiledLoop theChild : children) {
+				theChild.compile(theCodes);
+			}
+		}
+
+		private SegmentRule newRule(int code, X12Segment seg) {
+			// By tag code, or by seg when the code is X12Tag.NONE
+			SegmentRule theRule = new SegmentRule();
+			theRule.member = (code != X12Tag.NONE) ? loop.hasDataSegment(code) : loop.hasDataSegment(seg);
+			theRule.ender = loop.hasEndingSegment()
+					&& matches(code, seg, loop.attributes.getEndSegmentCode(), loop.attributes.getEndSegment());
+			theRule.starter = isStarter(code, seg);
+			theRule.childLoops = getChildLoops(code, seg);
+			theRule.siblingStarter = (parent != null && parent.getChildLoops(code, seg).length > 0);
+
+			int[] theLevels = new int[8];
+			int theCount = 0;
+			int level = 0;
+			for (CompiledLoop theAncestor = parent; theAncestor != null; theAncestor = theAncestor.parent) {
+				level++;
+				if (theAncestor.mayTake(code, seg)) {
+					if (theCount == theLevels.length) {
+						theLevels = Arrays.copyOf(theLevels, theCount << 1);
+					}
+					theLevels[theCount++] = level;
+				}
+			}
+			if (theCount > 0) {
+				theRule.parentLevels = Arrays.copyOf(theLevels, theCount);
+			}
+
+			if (!theRule.member && !theRule.ender && !theRule.starter && !theRule.siblingStarter
+					&& theRule.childLoops.length == 0 && theCount == 0) {
+				return null;
+			}
+			return theRule;
+		}
+
+		private boolean mayTake(int code, X12Segment seg) {
+			// Whether any test of X12LoopParser.searchParentLoops could pass
+			if ((code != X12Tag.NONE) ? loop.hasDataSegment(code) : loop.hasDataSegment(seg)) {
+				return true;
+			}
+			if (loop.hasEndingSegment()
+					&& matches(code, seg, loop.attributes.getEndSegmentCode(), loop.attributes.getEndSegment())) {
+				return true;
+			}
+			return isStarter(code, seg) || getChildLoops(code, seg).length > 0
+					|| (parent != null && parent.getChildLoops(code, seg).length > 0);
+		}
+
+		private boolean isStarter(int code, X12Segment seg) {
+			return matches(code, seg, loop.attributes.getStartSegmentCode(), loop.attributes.getStartSegment());
+		}
+
+		private int[] getChildLoops(int code, X12Segment seg) {
+			int[] theLoops = SegmentRule.NONE;
+			for (int i = 0; i < children.length; i++) {
+				if (children[i].isStarter(code, seg)) {
+					theLoops = Arrays.copyOf(theLoops, theLoops.length + 1);
+					theLoops[theLoops.length - 1] = i;
+				}
+			}
+			return theLoops;
+		}
+
+		private static boolean matches(int code, X12Segment seg, int schemaCode, String schemaId) {
+			// Same as the X12Segment tests of Loop (by code when both are standard tags)
+			if (schemaId == null) {
+				return false;
+			}
+			if (code != X12Tag.NONE) {
+				return code == schemaCode;
+			}
+			return schemaCode == X12Tag.NONE && seg.elementEqualsIgnoreCase(0, schemaId);
+		}
+	}
+	
+	private void addTransactionSet(XMLStreamReader xmlReader) throws X12Exception, XMLStreamException {
+		// Find the TransactionSetID and implementation
+		String id = null;
+		String impl = null;
+		for(int i=0; i < xmlReader.getAttributeCount(); i++) {
+			if(xmlReader.getAttributeLocalName(i).compareToIgnoreCase("id") == 0) {
+				id = xmlReader.getAttributeValue(i);
+			} else if(xmlReader.getAttributeLocalName(i).compareToIgnoreCase("impl") == 0) {
+				impl = xmlReader.getAttributeValue(i);
+			}
+		}
+		
+		if(id == null || id.length() == 0) {
+			throw new X12Exception("TransactionSet ID not found");
+		}
+		
+		//Create the TransactionSet object
+		TransactionSet ts = new TransactionSet(id);
+		
+		while(xmlReader.hasNext()) {
+			int eventType = xmlReader.next();
+			if(eventType == XMLStreamConstants.START_ELEMENT) {
+				String name = xmlReader.getLocalName();
+				if(name.compareToIgnoreCase("Segment") == 0) {
+					addSegment(ts, xmlReader);
+				} else if(name.compareToIgnoreCase("Loop") == 0) {
+					addLoop(ts, xmlReader);
+				}
+			}
+		}
+
+		// Compiled here so converters running on other threads do not each
+		// compile it. Replaces the TransactionSet with the same ID.
+		ts.getCompiled();
+		transactionSetMap.put(makeTSID(id, impl), ts);
+	}
+	private void addSegment(Loop ts, XMLStreamReader xmlReader) throws X12Exception {
+		String id = null;
+		int repetition = 1;
+		for(int i=0; i < xmlReader.getAttributeCount(); i++) {
+			String name = xmlReader.getAttributeLocalName(i);
+			if(name.compareToIgnoreCase("id") == 0) {
+				id = xmlReader.getAttributeValue(i);
+			} else if(name.compareToIgnoreCase("Repetition") == 0) {
+				repetition = Integer.parseInt(xmlReader.getAttributeValue(i));
+			}
+		}
+		
+		if(id == null || id.length() == 0) {
+			throw new X12Exception("Segment ID not found");
+		}
+				
+		ts.addDataSegment(id, repetition);
+	}
+	private void addLoop(Loop currentLoop, XMLStreamReader xmlReader) throws X12Exception, XMLStreamException {
+		Loop.Attributes theAttr = currentLoop.new Attributes();
+		getLoopAttributes(theAttr, xmlReader);
+
+		if(theAttr.getLoopId() == null || theAttr.getLoopId().length() == 0 || 
+				theAttr.getStartSegment() == null || theAttr.getStartSegment().length() == 0) {		
+			throw new X12Exception("Loop attributes not found");
+		}
+
+		//Create the loop object
+		Loop theNewLoop = currentLoop.newLoop(theAttr);
+
+		boolean continueLoop = true;
+		while(continueLoop && xmlReader.hasNext()) {
+			switch(xmlReader.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				String name = xmlReader.getLocalName();
+				if(name.compareToIgnoreCase("Segment") == 0) {
+					addSegment(theNewLoop, xmlReader);
+				} else if(name.compareToIgnoreCase("Loop") == 0) {
+					addLoop(theNewLoop, xmlReader);
+				}
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if(xmlReader.getLocalName().compareToIgnoreCase("Loop") == 0) {
+					continueLoop = false;
+				}
+				break;
+			}
+		}
+	}
+	private void getLoopAttributes(Loop.Attributes theAttr, XMLStreamReader xmlReader)
+	{
+		for(int i=0; i < xmlReader.getAttributeCount(); i++) {
+			String name = xmlReader.getAttributeLocalName(i);
+			if(name.compareToIgnoreCase("id") == 0) {
+				theAttr.setLoopId(xmlReader.getAttributeValue(i));
+			} else if(name.compareToIgnoreCase("Repetition") == 0) {
+				theAttr.setRepetition(Integer.parseInt(xmlReader.getAttributeValue(i)));
+			} else if(name.compareToIgnoreCase("StartSegment") == 0) {
+				theAttr.setStartSegment(xmlReader.getAttributeValue(i));
+			} else if(name.compareToIgnoreCase("StartSegmentData") == 0) {
+				theAttr.setStartSegmentData(xmlReader.getAttributeValue(i));
+			} else if(name.compareToIgnoreCase("EndSegment") == 0) {
+				theAttr.setEndSegment(xmlReader.getAttributeValue(i));
+			}
+		}
+	}
+	private String makeTSID(String id, String impl) {
+		// Called for every ST when converting (String.format is too slow)
+		String theTSID = null;
+		if(id != null && impl != null && !impl.isEmpty()) {
+			theTSID = id + '/' + impl;
+		}
+		else if(id != null && !id.isEmpty()) {
+			theTSID = id;
+		}
+		return theTSID;
+	}
+	
+	public void removeTransactionSet(String id) {
+		removeTransactionSet(id, null);
+	}
+	public void removeTransactionSet(String id, String impl) {
+		// ConcurrentHashMap does not take a null key
+		String theTSID = makeTSID(id, impl);
+		if(theTSID != null) {
+			transactionSetMap.remove(theTSID);
+		}
+	}
+	public void removeAllTransactionSets() {
+		transactionSetMap.clear();
+	}
+	public boolean hasTransactionSet(String id) {
+		return hasTransactionSet(id, null);
+	}
+	public boolean hasTransactionSet(String id, String impl) {
+		return (getTransactionSet(id, impl) != null);
+	}
+	public TransactionSet getTransactionSet(String id) {
+		return getTransactionSet(id, null);
+	}
+	public TransactionSet getTransactionSet(String id, String impl) {
+		String theTSID = makeTSID(id, impl);
+		return (theTSID == null) ? null : transactionSetMap.get(theTSID);
+	}
+	public synchronized void addTransactionSet(InputStream theStream) throws XMLStreamException, X12Exception {
+		// Synchronized for the factory - adding is rare, the lookups above
+		// are what converters call
+		// Ensure the factory
+		if (xmlInputFactory == null) {
+			xmlInputFactory = XMLInputFactory.newInstance();
+		}
+		
+		XMLStreamReader xmlReader = xmlInputFactory.createXMLStreamReader(theStream);
+		
+		while(xmlReader.hasNext()) {
+			int eventType = xmlReader.next();
+			if(eventType == XMLStreamConstants.START_ELEMENT) {
+				addTransactionSet(xmlReader);
+			}
+		}
+	}
+
 }
\ No newline at end of file
@@ -1,69 +1,661 @@
-package com.brwsoftware.brwx12library;
-
-import java.util.ArrayList;
-
-public final class X12Segment {
-	private char[] data;
-	private ArrayList<X12Element> elements;
-	
-	public X12Segment(char[] theSegment, char eleSep, char segSep) throws X12Exception {
-		data = theSegment;
-		elements = new ArrayList<X12Element>();
-
-		// Start looking for elements
-		int curIndex = -1;
-		int len = 0;
-		for (int i = 0; i < data.length; i++) {
-			if (curIndex == -1) {
-				curIndex = i;
-			}
-			if (data[i] == eleSep || data[i] == segSep) {
-				elements.add(new X12Element(curIndex, len));
-				len = 0;
-				curIndex = -1;
-			} else {
-				len++;
-			}
-		}
-		
-		if(elements.isEmpty()){
-			throw new X12Exception("Invalid X12 segment");
-		}
-	}
-	
-	public String toString() {
-		return new String(data);
-	}
-	
-	private final class X12Element {
-		private int offset;
-		private int length;
-
-		public X12Element(int theOffset, int theLength) {
-			offset = theOffset;
-			length = theLength;
-		}
-	}
-
-	public int getElementCount() {
-		if (elements == null) {
-			return 0;
-		}
-		return elements.size();
-	}
-
-	public boolean hasElement(int index) {
-		if (elements == null) {
-			return false;
-		}
-		return (index >= 0 && index < elements.size());
-	}
-
-	public String getElement(int index) {
-		if (elements == null || data == null) {
-			return null;
-		}			
-		X12Element theEle = elements.get(index);
-		return new String(data, theEle.offset, theEle.length);
-	}
-}
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public final class X12Segment {
+	private char[] data;
+	private byte[] byteData;
+	private int length;
+	// Position of the separator ending each element. Element i starts
+	// one past separators[i - 1] (or at 0) and ends at separators[i].
+	private int[] separators;
+	private int elementCount;
+	// Packed element 0 (see X12Tag)
+	private int tagCode;
+	// Component (ISA16) and repetition (ISA11) separators, 0 when not known
+	private char componentSeparator;
+	private char repetitionSeparator;
+	private SubElementTable componentTable;
+	private SubElementTable repetitionTable;
+	// Reused by getElementView, by element index
+	private ElementView[] elementViews = NO_VIEWS;
+
+	private static final int[] NO_SEPARATORS = new int[0];
+	private static final ElementView[] NO_VIEWS = new ElementView[0];
+
+	public X12Segment() {
+		// Empty segment intended to be filled (and refilled) by X12Reader.readSegment(X12Segment)
+		separators = new int[32];
+	}
+
+	public X12Segment(char[] theSegment, char eleSep, char segSep) throws X12Exception {
+		this(theSegment, eleSep, segSep, (char) 0, (char) 0);
+	}
+
+	public X12Segment(char[] theSegment, char eleSep, char segSep, char compSep, char repSep)
+			throws X12Exception {
+		data = theSegment;
+		length = theSegment.length;
+		separators = NO_SEPARATORS;
+		componentSeparator = compSep;
+		repetitionSeparator = repSep;
+		parseElements(eleSep, segSep);
+	}
+
+	public X12Segment(byte[] theSegment, char eleSep, char segSep) throws X12Exception {
+		this(theSegment, eleSep, segSep, (char) 0, (char) 0);
+	}
+
+	public X12Segment(byte[] theSegment, char eleSep, char segSep, char compSep, char repSep)
+			throws X12Exception {
+		// The raw bytes are kept as read and treated as 8-bit characters.
+		// Nothing is decoded until an element (or the whole segment) is requested.
+		byteData = theSegment;
+		length = theSegment.length;
+		separators = NO_SEPARATORS;
+		componentSeparator = compSep;
+		repetitionSeparator = repSep;
+		parseElements(eleSep, segSep);
+	}
+
+	void set(char[] theSegment, int theLength, char eleSep, char segSep, char compSep, char repSep)
+			throws X12Exception {
+		set(theSegment, 0, theLength, eleSep, segSep, compSep, repSep);
+	}
+
+	void set(char[] theSegment, int theOffset, int theLength, char eleSep, char segSep, char compSep,
+			char repSep) throws X12Exception {
+		// Reuse the backing buffer when it is big enough
+		if (data == null || data.length < theLength) {
+			data = new char[Math.max(theLength, 256)];
+		}
+		System.arraycopy(theSegment, theOffset, data, 0, theLength);
+		byteData = null;
+		length = theLength;
+		componentSeparator = compSep;
+		repetitionSeparator = repSep;
+		parseElements(eleSep, segSep);
+	}
+
+	void set(byte[] theSegment, int theLength, char eleSep, char segSep, char compSep, char repSep)
+			throws X12Exception {
+		set(theSegment, 0, theLength, eleSep, segSep, compSep, repSep);
+	}
+
+	void set(byte[] theSegment, int theOffset, int theLength, char eleSep, char segSep, char compSep,
+			char repSep) throws X12Exception {
+		if (byteData == null || byteData.length < theLength) {
+			byteData = new byte[Math.max(theLength, 256)];
+		}
+		System.arraycopy(theSegment, theOffset, byteData, 0, theLength);
+		data = null;
+		length = theLength;
+		componentSeparator = compSep;
+		repetitionSeparator = repSep;
+		parseElements(eleSep, segSep);
+	}
+
+	private int countSeparators(char eleSep, char segSep) {
+		int count = 0;
+		if (byteData != null && length >= X12Scanner.BLOCK_SIZE) {
+			count = X12Scanner.countSeparators(X12Scanner.wrap(byteData), length, (byte) eleSep, (byte) segSep);
+		} else if (byteData != null) {
+			byte eleByte = (byte) eleSep;
+			byte segByte = (byte) segSep;
+			for (int i = 0; i < length; i++) {
+				byte b = byteData[i];
+				if (b == eleByte || b == segByte) {
+					count++;
+				}
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				char c = data[i];
+				if (c == eleSep || c == segSep) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	private void parseElements(char eleSep, char segSep) throws X12Exception {
+		// Any sub element tables belong to the previous content
+		if (componentTable != null) {
+			componentTable.valid = false;
+		}
+		if (repetitionTable != null) {
+			repetitionTable.valid = false;
+		}
+
+		// Size the table exactly for new segments, only grow it for reused ones
+		int count = countSeparators(eleSep, segSep);
+		if (count == 0) {
+			elementCount = 0;
+			tagCode = X12Tag.NONE;
+			throw new X12Exception("Invalid X12 segment");
+		}
+		if (separators.length < count) {
+			separators = new int[(separators.length == 0) ? count : Math.max(count, separators.length << 1)];
+		}
+
+		// Record the element boundaries
+		int n = 0;
+		if (byteData != null && length >= X12Scanner.BLOCK_SIZE) {
+			// Longer byte segments are scanned a block at a time
+			X12Scanner.findSeparators(X12Scanner.wrap(byteData), length, (byte) eleSep, (byte) segSep,
+					separators, count);
+		} else if (byteData != null) {
+			byte eleByte = (byte) eleSep;
+			byte segByte = (byte) segSep;
+			for (int i = 0; n < count; i++) {
+				byte b = byteData[i];
+				if (b == eleByte || b == segByte) {
+					separators[n++] = i;
+				}
+			}
+		} else {
+			for (int i = 0; n < count; i++) {
+				char c = data[i];
+				if (c == eleSep || c == segSep) {
+					separators[n++] = i;
+				}
+			}
+		}
+		elementCount = count;
+
+		// Pack the segment ID
+		tagCode = X12Tag.NONE;
+		int tagLength = separators[0];
+		if (tagLength == 2 || tagLength == 3) {
+			for (int i = 0; i < tagLength; i++) {
+				int c = X12Tag.toTagChar(charAt(i));
+				if (c == 0) {
+					tagCode = X12Tag.NONE;
+					break;
+				}
+				tagCode = (tagCode << 8) | c;
+			}
+		}
+	}
+
+	public String toString() {
+		if (byteData != null) {
+			return new String(byteData, 0, length, StandardCharsets.ISO_8859_1);
+		}
+		if (data == null) {
+			return "";
+		}
+		return new String(data, 0, length);
+	}
+
+	int length() {
+		// The whole segment, up to and including its separator
+		return length;
+	}
+
+	char getElementSeparator() {
+		// 0 when the segment is only its tag
+		return (elementCount > 1) ? charAt(separators[0]) : 0;
+	}
+
+	char getSegmentSeparator() {
+		return charAt(length - 1);
+	}
+
+	boolean copyTo(byte[] theDest, int theOffset) {
+		// As 8-bit characters - false (with part copied) when one does not fit
+		if (byteData != null) {
+			System.arraycopy(byteData, 0, theDest, theOffset, length);
+			return true;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = data[i];
+			if (c > 0xFF) {
+				return false;
+			}
+			theDest[theOffset + i] = (byte) c;
+		}
+		return true;
+	}
+
+	void copyTo(char[] theDest, int theOffset) {
+		if (byteData != null) {
+			for (int i = 0; i < length; i++) {
+				theDest[theOffset + i] = (char) (byteData[i] & 0xFF);
+			}
+		} else {
+			System.arraycopy(data, 0, theDest, theOffset, length);
+		}
+	}
+
+	void write(Writer theWriter) throws IOException {
+		if (byteData != null) {
+			for (int i = 0; i < length; i++) {
+				theWriter.write(byteData[i] & 0xFF);
+			}
+		} else if (data != null) {
+			theWriter.write(data, 0, length);
+		}
+	}
+
+	private final class ElementView implements CharSequence {
+		private int offset;
+		private int length;
+
+		private ElementView(int offset, int length) {
+			set(offset, length);
+		}
+
+		private void set(int offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("Index: " + index);
+			}
+			return X12Segment.this.charAt(offset + index);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end) {
+				throw new IndexOutOfBoundsException();
+			}
+			return new ElementView(offset + start, end - start);
+		}
+
+		public String toString() {
+			return substring(offset, offset + length);
+		}
+	}
+
+	private char charAt(int pos) {
+		if (byteData != null) {
+			return (char) (byteData[pos] & 0xFF);
+		}
+		return data[pos];
+	}
+
+	private static boolean equalsIgnoreCase(char c1, char c2) {
+		if (c1 == c2) {
+			return true;
+		}
+		char u1 = Character.toUpperCase(c1);
+		char u2 = Character.toUpperCase(c2);
+		return (u1 == u2 || Character.toLowerCase(u1) == Character.toLowerCase(u2));
+	}
+
+	private final class SubElementTable {
+		// Positions of the sub element separators for the whole segment and,
+		// per element, the index of its first entry in positions
+		private int[] positions = new int[16];
+		private int[] first = NO_SEPARATORS;
+		private boolean valid;
+
+		private void build(char separator) {
+			if (first.length < elementCount + 1) {
+				first = new int[Math.max(elementCount + 1, first.length << 1)];
+			}
+			int n = 0;
+			for (int e = 0; e < elementCount; e++) {
+				first[e] = n;
+				if (separator != 0) {
+					int end = separators[e];
+					for (int i = getElementOffset(e); i < end; i++) {
+						if (charAt(i) == separator) {
+							if (n == positions.length) {
+								positions = Arrays.copyOf(positions, n << 1);
+							}
+							positions[n++] = i;
+						}
+					}
+				}
+			}
+			first[elementCount] = n;
+			valid = true;
+		}
+
+		private int count(int index) {
+			return first[index + 1] - first[index] + 1;
+		}
+
+		private int start(int index, int sub) {
+			return (sub == 0) ? getElementOffset(index) : positions[first[index] + sub - 1] + 1;
+		}
+
+		private int end(int index, int sub) {
+			return (first[index] + sub == first[index + 1]) ? separators[index] : positions[first[index] + sub];
+		}
+	}
+
+	private SubElementTable getComponentTable() {
+		if (componentTable == null) {
+			componentTable = new SubElementTable();
+		}
+		if (!componentTable.valid) {
+			componentTable.build(componentSeparator);
+		}
+		return componentTable;
+	}
+
+	private SubElementTable getRepetitionTable() {
+		if (repetitionTable == null) {
+			repetitionTable = new SubElementTable();
+		}
+		if (!repetitionTable.valid) {
+			repetitionTable.build(repetitionSeparator);
+		}
+		return repetitionTable;
+	}
+
+	private String substring(int start, int end) {
+		if (byteData != null) {
+			return new String(byteData, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		return new String(data, start, end - start);
+	}
+
+	private int getElementOffset(int index) {
+		return (index == 0) ? 0 : separators[index - 1] + 1;
+	}
+
+	public int getTagCode() {
+		return tagCode;
+	}
+
+	public boolean isTag(int code) {
+		return (tagCode == code && code != X12Tag.NONE);
+	}
+
+	public int getElementCount() {
+		return elementCount;
+	}
+
+	public boolean hasElement(int index) {
+		return (index >= 0 && index < elementCount);
+	}
+
+	public String getElement(int index) {
+		if (data == null && byteData == null) {
+			return null;
+		}
+		if (!hasElement(index)) {
+			throw new IndexOutOfBoundsException("Element index: " + index);
+		}
+		return substring(getElementOffset(index), separators[index]);
+	}
+
+	public CharSequence getElementView(int index) {
+		// A view over the segment's own buffer - nothing is copied, and the
+		// view of each index is reused so nothing is allocated either once
+		// the segment has been that wide.
+		// Note: the view follows the buffer, so it is only valid until the
+		// segment is refilled by X12Reader.readSegment(X12Segment). Every
+		// call for an index returns the same object.
+		if (data == null && byteData == null) {
+			return null;
+		}
+		if (!hasElement(index)) {
+			throw new IndexOutOfBoundsException("Element index: " + index);
+		}
+		int offset = getElementOffset(index);
+		if (index >= elementViews.length) {
+			elementViews = Arrays.copyOf(elementViews, Math.max(index + 1, elementCount));
+		}
+		ElementView theView = elementViews[index];
+		if (theView == null) {
+			theView = new ElementView(offset, separators[index] - offset);
+			elementViews[index] = theView;
+		} else {
+			theView.set(offset, separators[index] - offset);
+		}
+		return theView;
+	}
+
+	public int getElementLength(int index) {
+		if (!hasElement(index)) {
+			return 0;
+		}
+		return separators[index] - getElementOffset(index);
+	}
+
+	public boolean elementEquals(int index, String value) {
+		if (!hasElement(index)) {
+			return false;
+		}
+		int offset = getElementOffset(index);
+		int len = separators[index] - offset;
+		if (len != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (charAt(offset + i) != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean elementEqualsIgnoreCase(int index, String value) {
+		if (!hasElement(index)) {
+			return false;
+		}
+		int offset = getElementOffset(index);
+		int len = separators[index] - offset;
+		if (len != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (!equalsIgnoreCase(charAt(offset + i), value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean elementStartsWith(int index, String prefix) {
+		if (!hasElement(index)) {
+			return false;
+		}
+		int offset = getElementOffset(index);
+		int len = separators[index] - offset;
+		if (len < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (charAt(offset + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public char getComponentSeparator() {
+		return componentSeparator;
+	}
+
+	public char getRepetitionSeparator() {
+		return repetitionSeparator;
+	}
+
+	public int getComponentCount(int index) {
+		// Note: the whole element is split on the component separator
+		if (!hasElement(index)) {
+			return 0;
+		}
+		return getComponentTable().count(index);
+	}
+
+	public String getComponent(int index, int component) {
+		if (component < 0 || component >= getComponentCount(index)) {
+			throw new IndexOutOfBoundsException("Component index: " + component);
+		}
+		SubElementTable table = getComponentTable();
+		return substring(table.start(index, component), table.end(index, component));
+	}
+
+	public int getComponentLength(int index, int component) {
+		if (component < 0 || component >= getComponentCount(index)) {
+			return 0;
+		}
+		SubElementTable table = getComponentTable();
+		return table.end(index, component) - table.start(index, component);
+	}
+
+	public int getRepetitionCount(int index) {
+		if (!hasElement(index)) {
+			return 0;
+		}
+		return getRepetitionTable().count(index);
+	}
+
+	public String getRepetition(int index, int repetition) {
+		if (repetition < 0 || repetition >= getRepetitionCount(index)) {
+			throw new IndexOutOfBoundsException("Repetition index: " + repetition);
+		}
+		SubElementTable table = getRepetitionTable();
+		return substring(table.start(index, repetition), table.end(index, repetition));
+	}
+
+	public long getElementAsLong(int index, long defaultValue) {
+		// Integer (N0) element, optionally signed. Empty, malformed or out of
+		// range values return defaultValue.
+		if (!hasElement(index)) {
+			return defaultValue;
+		}
+		int pos = getElementOffset(index);
+		int end = separators[index];
+		if (pos == end) {
+			return defaultValue;
+		}
+		boolean negative = false;
+		char c = charAt(pos);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			if (++pos == end) {
+				return defaultValue;
+			}
+		}
+		// Accumulated as a negative number so Long.MIN_VALUE fits, the same
+		// as Long.parseLong
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value = 0;
+		for (; pos < end; pos++) {
+			int digit = charAt(pos) - '0';
+			if (digit < 0 || digit > 9 || value < (limit + digit) / 10) {
+				return defaultValue;
+			}
+			value = value * 10 - digit;
+		}
+		return negative ? value : -value;
+	}
+
+	public int getElementAsInt(int index, int defaultValue) {
+		long value = getElementAsLong(index, Long.MIN_VALUE);
+		if (value == Long.MIN_VALUE || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+			return defaultValue;
+		}
+		return (int) value;
+	}
+
+	public boolean getElementAsDecimal(int index, X12Decimal result) {
+		// Decimal (R) element, e.g. "-123.45", "12" or ".5". The value is returned
+		// as an unscaled long plus scale. Returns false (result untouched) when the
+		// element is empty, malformed or does not fit in a long.
+		if (!hasElement(index)) {
+			return false;
+		}
+		int pos = getElementOffset(index);
+		int end = separators[index];
+		boolean negative = false;
+		if (pos < end && (charAt(pos) == '-' || charAt(pos) == '+')) {
+			negative = (charAt(pos) == '-');
+			pos++;
+		}
+		// Negative while accumulating, see getElementAsLong
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value = 0;
+		int scale = -1;
+		int digits = 0;
+		for (; pos < end; pos++) {
+			char c = charAt(pos);
+			if (c == '.' && scale < 0) {
+				scale = 0;
+				continue;
+			}
+			int digit = c - '0';
+			if (digit < 0 || digit > 9 || value < (limit + digit) / 10) {
+				return false;
+			}
+			value = value * 10 - digit;
+			digits++;
+			if (scale >= 0) {
+				scale++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		result.set(negative ? value : -value, Math.max(scale, 0));
+		return true;
+	}
+
+	public int getElementAsDate(int index) {
+		// Date element as CCYYMMDD or YYMMDD. Returns the date as a CCYYMMDD
+		// int (e.g. 20240131) or -1 when it is empty or not a valid date.
+		if (!hasElement(index)) {
+			return -1;
+		}
+		int pos = getElementOffset(index);
+		int len = separators[index] - pos;
+		if (len != 8 && len != 6) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < len; i++) {
+			int digit = charAt(pos + i) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		int year = value / 10000;
+		if (len == 6) {
+			year = expandYear(year);
+		}
+		return makeDate(year, (value / 100) % 100, value % 100);
+	}
+
+	static int expandYear(int yy) {
+		// Two digit years: 00-49 are 20xx, 50-99 are 19xx
+		return (yy < 50) ? 2000 + yy : 1900 + yy;
+	}
+
+	static int makeDate(int year, int month, int day) {
+		if (month < 1 || month > 12 || day < 1) {
+			return -1;
+		}
+		int maxDay;
+		if (month == 2) {
+			boolean leap = (year % 4 == 0) && (year % 100 != 0 || year % 400 == 0);
+			maxDay = leap ? 29 : 28;
+		} else if (month == 4 || month == 6 || month == 9 || month == 11) {
+			maxDay = 30;
+		} else {
+			maxDay = 31;
+		}
+		if (day > maxDay) {
+			return -1;
+		}
+		return year * 10000 + month * 100 + day;
+	}
+}
@@ -0,0 +1,120 @@
+package com.brwsoftware.brwx12library;
+
+import java.util.Arrays;
+
+final class X12SegmentNames {
+
+/*
+	Element names of a segment ("CLM05", "CLM05-01") as used by the XML and
+	JSON converters, built on first use. Table keeps them by segment tag
+	code so they are only built once per converter.
+*/
+	private static final String[] NO_NAMES = new String[0];
+
+	private final String tag;
+	private String[] elementNames = NO_NAMES;
+	private String[][] componentNames = new String[0][];
+
+	private X12SegmentNames(String tag) {
+		this.tag = tag.toUpperCase();
+	}
+
+	String getSegmentName(X12Segment theSegment) {
+		// The segment keeps the case of the data
+		return theSegment.elementEquals(0, tag) ? tag : theSegment.getElement(0);
+	}
+
+	String getElementName(int index) {
+		if (index >= elementNames.length) {
+			elementNames = Arrays.copyOf(elementNames, Math.max(index + 1, elementNames.length << 1));
+		}
+		String name = elementNames[index];
+		if (name == null) {
+			name = appendIndex(new StringBuilder(tag), index).toString();
+			elementNames[index] = name;
+		}
+		return name;
+	}
+
+	String getComponentName(int index, int component) {
+		if (index >= componentNames.length) {
+			componentNames = Arrays.copyOf(componentNames, Math.max(index + 1, componentNames.length << 1));
+		}
+		String[] names = componentNames[index];
+		if (names == null) {
+			names = NO_NAMES;
+		}
+		if (component >= names.length) {
+			names = Arrays.copyOf(names, Math.max(component + 1, 4));
+			componentNames[index] = names;
+		}
+		String name = names[component];
+		if (name == null) {
+			StringBuilder sb = appendIndex(new StringBuilder(getElementName(index)).append('-'), component);
+			name = sb.toString();
+			names[component] = name;
+		}
+		return name;
+	}
+
+	private static StringBuilder appendIndex(StringBuilder sb, int index) {
+		// Same as %02d
+		if (index < 10) {
+			sb.append('0');
+		}
+		return sb.append(index);
+	}
+
+	static final class Table {
+		// By segment tag code (see X12Tag) - open addressing, a code of
+		// X12Tag.NONE is an empty slot
+		private int[] codes = new int[64];
+		private X12SegmentNames[] names = new X12SegmentNames[64];
+		private int count;
+
+		X12SegmentNames get(X12Segment theSegment) {
+			int code = theSegment.getTagCode();
+			if (code == X12Tag.NONE) {
+				// Not a standard tag so it cannot be looked up by code
+				return new X12SegmentNames(theSegment.getElement(0));
+			}
+
+			int mask = codes.length - 1;
+			int i = (code * 0x9E3779B9 >>> 16) & mask;
+			while (codes[i] != X12Tag.NONE) {
+				if (codes[i] == code) {
+					return names[i];
+				}
+				i = (i + 1) & mask;
+			}
+
+			X12SegmentNames theNames = new X12SegmentNames(X12Tag.toString(code));
+			if ((count + 1) * 2 > codes.length) {
+				// Grow and rehash
+				int[] oldCodes = codes;
+				X12SegmentNames[] oldNames = names;
+				codes = new int[oldCodes.length << 1];
+				names = new X12SegmentNames[oldCodes.length << 1];
+				count = 0;
+				for (int j = 0; j < oldCodes.length; j++) {
+					if (oldCodes[j] != X12Tag.NONE) {
+						put(oldCodes[j], oldNames[j]);
+					}
+				}
+			}
+			put(code, theNames);
+			return theNames;
+		}
+
+		private void put(int code, X12SegmentNames theNames) {
+			int mask = codes.length - 1;
+			int i = (code * 0x9E3779B9 >>> 16) & mask;
+			while (codes[i] != X12Tag.NONE) {
+				i = (i + 1) & mask;
+			}
+			codes[i] = code;
+			names[i] = theNames;
+			count++;
+		}
+	}
+}
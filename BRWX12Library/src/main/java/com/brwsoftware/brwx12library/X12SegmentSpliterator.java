@@ -0,0 +1,196 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+final class X12SegmentSpliterator implements Spliterator<X12Segment> {
+
+/*
+	Spliterator behind X12Reader.segments(). In byte mode the unread data is
+	one buffer and a split hands the first part of the range to a new
+	spliterator. Splits are made at an interchange boundary when the range
+	holds one (each part then has a single set of separators), otherwise at
+	the first segment separator after the middle. Character mode input is
+	read sequentially from the reader and never split.
+*/
+	private static final int MIN_SPLIT_SIZE = 64 * 1024;
+	// Only used to estimate the number of segments in a range
+	private static final int AVERAGE_SEGMENT_LENGTH = 40;
+
+	private final ByteBuffer data;
+	private final Charset charset;
+	private int pos;
+	private int end;
+	// Separators for the range, null when they have not been read yet
+	private X12Reader interchange;
+	// The range starts with an ISA which is returned as the first segment
+	private boolean startsWithISA;
+	// Offsets of the ISAs in the data, found on the first split
+	private int[] isaPositions;
+	private X12Reader reader;
+
+	X12SegmentSpliterator(X12Reader theReader) throws IOException {
+		data = theReader.getRemainingBytes();
+		charset = theReader.getCharset();
+		if (data == null) {
+			reader = theReader;
+		} else {
+			pos = data.position();
+			end = data.limit();
+			if (theReader.getISA() != null) {
+				interchange = theReader;
+			} else {
+				startsWithISA = true;
+			}
+		}
+	}
+
+	private X12SegmentSpliterator(ByteBuffer data, Charset charset, int pos, int end, X12Reader interchange,
+			boolean startsWithISA, int[] isaPositions) {
+		this.data = data;
+		this.charset = charset;
+		this.pos = pos;
+		this.end = end;
+		this.interchange = interchange;
+		this.startsWithISA = startsWithISA;
+		this.isaPositions = isaPositions;
+	}
+
+	private ByteBuffer slice(int from, int to) {
+		ByteBuffer theBuffer = data.duplicate();
+		theBuffer.limit(to);
+		theBuffer.position(from);
+		return theBuffer;
+	}
+
+	public boolean tryAdvance(Consumer<? super X12Segment> action) {
+		try {
+			X12Segment theSegment;
+			if (reader == null) {
+				if (startsWithISA) {
+					reader = new X12Reader(slice(pos, end), charset);
+					theSegment = reader.readISA().toSegment();
+				} else {
+					reader = new X12Reader(slice(pos, end), interchange);
+					theSegment = reader.readSegment();
+				}
+			} else {
+				theSegment = reader.readSegment();
+			}
+
+			if (theSegment == null) {
+				return false;
+			}
+			action.accept(theSegment);
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (X12Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Spliterator<X12Segment> trySplit() {
+		// Only before reading has started
+		if (data == null || reader != null || end - pos < MIN_SPLIT_SIZE) {
+			return null;
+		}
+
+		try {
+			if (isaPositions == null) {
+				isaPositions = findISAPositions(data, pos, end);
+			}
+			if (interchange == null) {
+				X12Reader theReader = new X12Reader(slice(pos, end), charset);
+				theReader.readISA();
+				interchange = theReader;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (X12Exception e) {
+			throw new IllegalStateException(e);
+		}
+
+		int mid = pos + ((end - pos) >>> 1);
+		int split = nearestISA(mid);
+		boolean splitAtISA = (split >= 0);
+		if (!splitAtISA) {
+			byte segByte = (byte) interchange.getISA().getSegmentSeparator();
+			split = X12Scanner.indexOf(data, mid, end, segByte) + 1;
+			if (split >= end) {
+				return null;
+			}
+		}
+
+		X12SegmentSpliterator thePrefix = new X12SegmentSpliterator(data, charset, pos, split, interchange,
+				startsWithISA, isaPositions);
+		pos = split;
+		startsWithISA = splitAtISA;
+		if (splitAtISA) {
+			interchange = null;
+		}
+		return thePrefix;
+	}
+
+	private int nearestISA(int mid) {
+		// The ISA inside (pos, end) closest to mid, or -1
+		int index = Arrays.binarySearch(isaPositions, mid);
+		if (index >= 0) {
+			return mid;
+		}
+		index = -index - 1;
+		int best = -1;
+		if (index < isaPositions.length && isaPositions[index] < end) {
+			best = isaPositions[index];
+		}
+		if (index > 0 && isaPositions[index - 1] > pos
+				&& (best < 0 || mid - isaPositions[index - 1] < best - mid)) {
+			best = isaPositions[index - 1];
+		}
+		return best;
+	}
+
+	private static int[] findISAPositions(ByteBuffer data, int from, int to) {
+		int[] positions = new int[8];
+		int count = 0;
+		// An ISA at the start of the range is not a split point
+		int i = from + 1;
+		while ((i = X12Scanner.indexOf(data, i, to, (byte) 'I')) < to) {
+			if (isISA(data, i, to)) {
+				if (count == positions.length) {
+					positions = Arrays.copyOf(positions, count << 1);
+				}
+				positions[count++] = i;
+			}
+			i++;
+		}
+		return Arrays.copyOf(positions, count);
+	}
+
+	private static boolean isISA(ByteBuffer data, int i, int to) {
+		if (i + ISASegment.ISA_LENGTH > to || data.get(i + 1) != 'S' || data.get(i + 2) != 'A'
+				|| Character.isLetterOrDigit(data.get(i - 1) & 0xFF)) {
+			return false;
+		}
+		byte eleSep = data.get(i + 3);
+		return (!Character.isLetterOrDigit(eleSep & 0xFF) && eleSep == data.get(i + 6) && eleSep == data.get(i + 17)
+				&& eleSep == data.get(i + 20) && eleSep == data.get(i + 31));
+	}
+
+	public long estimateSize() {
+		if (data == null) {
+			return Long.MAX_VALUE;
+		}
+		long from = (reader == null) ? pos : reader.getPosition();
+		return Math.max(end - from, 0) / AVERAGE_SEGMENT_LENGTH;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+}
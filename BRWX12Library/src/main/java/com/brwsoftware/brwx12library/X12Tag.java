@@ -0,0 +1,124 @@
+package com.brwsoftware.brwx12library;
+
+public final class X12Tag {
+
+	// Segment IDs are 2-3 upper case letters/digits. The tag code packs them
+	// 8 bits per character (e.g. "ST" is 0x5354, "CLM" is 0x434C4D) so they can
+	// be compared or used in a switch as plain ints. 0 means no valid tag.
+	public static final int NONE = 0;
+
+	// Envelope
+	public static final int ISA = 0x495341;
+	public static final int IEA = 0x494541;
+	public static final int GS = 0x4753;
+	public static final int GE = 0x4745;
+	public static final int ST = 0x5354;
+	public static final int SE = 0x5345;
+	public static final int TA1 = 0x544131;
+
+	// Common segments
+	public static final int BHT = 0x424854;
+	public static final int BPR = 0x425052;
+	public static final int TRN = 0x54524E;
+	public static final int HL = 0x484C;
+	public static final int NM1 = 0x4E4D31;
+	public static final int N1 = 0x4E31;
+	public static final int N2 = 0x4E32;
+	public static final int N3 = 0x4E33;
+	public static final int N4 = 0x4E34;
+	public static final int PER = 0x504552;
+	public static final int REF = 0x524546;
+	public static final int DTP = 0x445450;
+	public static final int DTM = 0x44544D;
+	public static final int DMG = 0x444D47;
+	public static final int PRV = 0x505256;
+	public static final int SBR = 0x534252;
+	public static final int PAT = 0x504154;
+	public static final int CLM = 0x434C4D;
+	public static final int CL1 = 0x434C31;
+	public static final int HI = 0x4849;
+	public static final int SV1 = 0x535631;
+	public static final int SV2 = 0x535632;
+	public static final int SV3 = 0x535633;
+	public static final int SV5 = 0x535635;
+	public static final int LX = 0x4C58;
+	public static final int CLP = 0x434C50;
+	public static final int CAS = 0x434153;
+	public static final int SVC = 0x535643;
+	public static final int AMT = 0x414D54;
+	public static final int QTY = 0x515459;
+	public static final int NTE = 0x4E5445;
+	public static final int PWK = 0x50574B;
+	public static final int CN1 = 0x434E31;
+	public static final int CR1 = 0x435231;
+	public static final int HCP = 0x484350;
+	public static final int MOA = 0x4D4F41;
+	public static final int MIA = 0x4D4941;
+	public static final int PLB = 0x504C42;
+	public static final int TOO = 0x544F4F;
+	public static final int K3 = 0x4B33;
+	public static final int LQ = 0x4C51;
+	public static final int EQ = 0x4551;
+	public static final int EB = 0x4542;
+	public static final int III = 0x494949;
+	public static final int INS = 0x494E53;
+	public static final int HD = 0x4844;
+	public static final int COB = 0x434F42;
+	private X12Tag() {
+	}
+
+	public static int valueOf(CharSequence id) {
+		if (id == null) {
+			return NONE;
+		}
+		return valueOf(id, 0, id.length());
+	}
+
+	public static int[] valuesOf(String... ids) {
+		int[] codes = new int[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			codes[i] = valueOf(ids[i]);
+		}
+		return codes;
+	}
+
+	static int valueOf(CharSequence id, int offset, int length) {
+		if (length < 2 || length > 3) {
+			return NONE;
+		}
+		int code = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int c = toTagChar(id.charAt(i));
+			if (c == 0) {
+				return NONE;
+			}
+			code = (code << 8) | c;
+		}
+		return code;
+	}
+
+	static int toTagChar(char c) {
+		// Upper case letter or digit, 0 for anything else
+		if (c >= 'A' && c <= 'Z' || c >= '0' && c <= '9') {
+			return c;
+		}
+		if (c >= 'a' && c <= 'z') {
+			return c - ('a' - 'A');
+		}
+		return 0;
+	}
+
+	public static String toString(int code) {
+		if (code == NONE) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(3);
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			int c = (code >>> shift) & 0xFF;
+			if (c != 0) {
+				sb.append((char) c);
+			}
+		}
+		return sb.toString();
+	}
+}
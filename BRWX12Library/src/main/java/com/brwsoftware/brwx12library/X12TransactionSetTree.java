@@ -0,0 +1,341 @@
+package com.brwsoftware.brwx12library;
+
+import java.util.Arrays;
+
+public final class X12TransactionSetTree {
+
+/*
+	One transaction set (ST to SE) held in memory with its schema loops, for
+	random access - e.g. from a 2400 SVC back to the CLM of its 2300.
+
+	Loops and segments are nodes numbered in document order. Node 0 is the
+	transaction set itself (a loop with the ST01 as its ID), every node
+	after it is inside it. Nothing is kept per node but three ints:
+
+	parents - the enclosing loop (-1 for node 0)
+	starts  - a segment's offset in the arena, or -1 - the index in
+	          loopIDs for a loop
+	ends    - for a loop the node after its last descendant, for a segment
+	          the end of its text in the arena
+
+	The segments are back to back in one arena as read (each ending with
+	its segment separator), as bytes unless a character does not fit in
+	8 bits. Build the trees with a Builder on an X12LoopParser.
+*/
+	public interface Listener {
+		// Each complete transaction set. The tree is not used by the Builder
+		// after the call, it can be kept.
+		void transactionSet(X12TransactionSetTree theTree) throws X12Exception;
+	}
+
+	private final int nodeCount;
+	private final int[] parents;
+	private final int[] starts;
+	private final int[] ends;
+	private final String[] loopIDs;
+	// One of these is the arena
+	private final byte[] bytes;
+	private final char[] chars;
+	private final char elementSeparator;
+	private final char segmentSeparator;
+	private final char componentSeparator;
+	private final char repetitionSeparator;
+
+	private X12TransactionSetTree(Builder theBuilder) {
+		nodeCount = theBuilder.nodeCount;
+		parents = Arrays.copyOf(theBuilder.parents, nodeCount);
+		starts = Arrays.copyOf(theBuilder.starts, nodeCount);
+		ends = Arrays.copyOf(theBuilder.ends, nodeCount);
+		loopIDs = Arrays.copyOf(theBuilder.loopIDs, theBuilder.loopIDCount);
+		bytes = (theBuilder.chars == null) ? Arrays.copyOf(theBuilder.bytes, theBuilder.length) : null;
+		chars = (theBuilder.chars == null) ? null : Arrays.copyOf(theBuilder.chars, theBuilder.length);
+		elementSeparator = theBuilder.elementSeparator;
+		segmentSeparator = theBuilder.segmentSeparator;
+		componentSeparator = theBuilder.componentSeparator;
+		repetitionSeparator = theBuilder.repetitionSeparator;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public boolean isLoop(int node) {
+		return (starts[node] < 0);
+	}
+
+	public boolean isSegment(int node) {
+		return (starts[node] >= 0);
+	}
+
+	public String getLoopID(int node) {
+		// null for a segment
+		return isLoop(node) ? loopIDs[-1 - starts[node]] : null;
+	}
+
+	public String getTransactionSetID() {
+		return getLoopID(0);
+	}
+
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public int getFirstChild(int node) {
+		// -1 when there is none
+		return (isLoop(node) && ends[node] > node + 1) ? node + 1 : -1;
+	}
+
+	public int getNextSibling(int node) {
+		// -1 when there is none
+		int next = isLoop(node) ? ends[node] : node + 1;
+		int parent = parents[node];
+		return (parent >= 0 && next < ends[parent]) ? next : -1;
+	}
+
+	public int[] getChildren(int node) {
+		int count = 0;
+		for (int child = getFirstChild(node); child >= 0; child = getNextSibling(child)) {
+			count++;
+		}
+		int[] theChildren = new int[count];
+		count = 0;
+		for (int child = getFirstChild(node); child >= 0; child = getNextSibling(child)) {
+			theChildren[count++] = child;
+		}
+		return theChildren;
+	}
+
+	public int findLoop(String loopID) {
+		return findLoop(0, loopID);
+	}
+
+	public int findLoop(int node, String loopID) {
+		// First loop with the ID inside node (in document order), -1 when
+		// there is none
+		int end = isLoop(node) ? ends[node] : node + 1;
+		for (int i = node + 1; i < end; i++) {
+			if (isLoop(i) && loopIDs[-1 - starts[i]].equalsIgnoreCase(loopID)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int findParentLoop(int node, String loopID) {
+		// Nearest enclosing loop with the ID, -1 when there is none
+		for (int parent = parents[node]; parent >= 0; parent = parents[parent]) {
+			if (loopIDs[-1 - starts[parent]].equalsIgnoreCase(loopID)) {
+				return parent;
+			}
+		}
+		return -1;
+	}
+
+	public int[] segments(String tag) {
+		return segments(0, tag);
+	}
+
+	public int[] segments(int node, String tag) {
+		// The segments with the tag inside node (at any depth), in document
+		// order
+		int end = isLoop(node) ? ends[node] : node + 1;
+		int[] theSegments = new int[8];
+		int count = 0;
+		for (int i = node; i < end; i++) {
+			if (isSegment(i) && isTag(i, tag)) {
+				if (count == theSegments.length) {
+					theSegments = Arrays.copyOf(theSegments, count << 1);
+				}
+				theSegments[count++] = i;
+			}
+		}
+		return Arrays.copyOf(theSegments, count);
+	}
+
+	public String getSegmentTag(int node) {
+		// null for a loop
+		if (isLoop(node)) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(3);
+		for (int i = starts[node]; i < ends[node]; i++) {
+			char c = charAt(i);
+			if (c == elementSeparator || c == segmentSeparator) {
+				break;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	public X12Segment getSegment(int node) throws X12Exception {
+		return getSegment(node, new X12Segment());
+	}
+
+	public X12Segment getSegment(int node, X12Segment theSegment) throws X12Exception {
+		// Refills theSegment (see X12Reader.readSegment(X12Segment))
+		if (isLoop(node)) {
+			throw new X12Exception("Not a segment node");
+		}
+		int start = starts[node];
+		if (bytes != null) {
+			theSegment.set(bytes, start, ends[node] - start, elementSeparator, segmentSeparator,
+					componentSeparator, repetitionSeparator);
+		} else {
+			theSegment.set(chars, start, ends[node] - start, elementSeparator, segmentSeparator,
+					componentSeparator, repetitionSeparator);
+		}
+		return theSegment;
+	}
+
+	public long getArenaLength() {
+		// Characters of segment text held
+		return (bytes != null) ? bytes.length : chars.length;
+	}
+
+	private char charAt(int pos) {
+		return (bytes != null) ? (char) (bytes[pos] & 0xFF) : chars[pos];
+	}
+
+	private boolean isTag(int node, String tag) {
+		int start = starts[node];
+		int length = tag.length();
+		if (start + length >= ends[node]) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c1 = charAt(start + i);
+			char c2 = tag.charAt(i);
+			if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2)) {
+				return false;
+			}
+		}
+		char c = charAt(start + length);
+		return (c == elementSeparator || c == segmentSeparator);
+	}
+
+	public static final class Builder extends X12Handler.Adapter {
+		// Collects the events of one transaction set at a time into arrays
+		// that are reused, each tree gets copies trimmed to size
+		private final Listener listener;
+		private int[] parents = new int[256];
+		private int[] starts = new int[256];
+		private int[] ends = new int[256];
+		private int nodeCount;
+		private String[] loopIDs = new String[16];
+		private int loopIDCount;
+		private byte[] bytes = new byte[8 * 1024];
+		private char[] chars;
+		private int length;
+		// The open loop (-1 outside a transaction set)
+		private int current = -1;
+		private char elementSeparator;
+		private char segmentSeparator;
+		private char componentSeparator;
+		private char repetitionSeparator;
+
+		public Builder(Listener listener) {
+			this.listener = listener;
+		}
+
+		public void startTransactionSet(X12Segment theST) throws X12Exception {
+			nodeCount = 0;
+			loopIDCount = 0;
+			length = 0;
+			chars = null;
+			current = -1;
+			elementSeparator = theST.getElementSeparator();
+			segmentSeparator = theST.getSegmentSeparator();
+			componentSeparator = theST.getComponentSeparator();
+			repetitionSeparator = theST.getRepetitionSeparator();
+
+			startLoop(theST.getElement(1));
+			segment(theST);
+		}
+
+		public void endTransactionSet(X12Segment theSE) throws X12Exception {
+			if (current < 0) {
+				return;
+			}
+			if (theSE != null) {
+				segment(theSE);
+			}
+			endLoop();
+			listener.transactionSet(new X12TransactionSetTree(this));
+		}
+
+		public void startLoop(String loopID) throws X12Exception {
+			int node = addNode(-1 - getLoopIDIndex(loopID));
+			current = node;
+		}
+
+		public void endLoop() throws X12Exception {
+			if (current >= 0) {
+				ends[current] = nodeCount;
+				current = parents[current];
+			}
+		}
+
+		public void segment(X12Segment theSegment) throws X12Exception {
+			if (current < 0) {
+				// Not in a transaction set (e.g. a TA1)
+				return;
+			}
+
+			int theLength = theSegment.length();
+			int node = addNode(length);
+			if (chars == null) {
+				ensureArena(theLength);
+				if (!theSegment.copyTo(bytes, length)) {
+					// Wider than 8 bits - the arena becomes chars from here on
+					chars = new char[bytes.length];
+					for (int i = 0; i < length; i++) {
+						chars[i] = (char) (bytes[i] & 0xFF);
+					}
+				}
+			}
+			if (chars != null) {
+				ensureArena(theLength);
+				theSegment.copyTo(chars, length);
+			}
+			length += theLength;
+			ends[node] = length;
+		}
+
+		private int addNode(int start) {
+			if (nodeCount == parents.length) {
+				int capacity = nodeCount << 1;
+				parents = Arrays.copyOf(parents, capacity);
+				starts = Arrays.copyOf(starts, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+			}
+			parents[nodeCount] = current;
+			starts[nodeCount] = start;
+			return nodeCount++;
+		}
+
+		private int getLoopIDIndex(String loopID) {
+			// A transaction set only uses a few distinct loop IDs
+			for (int i = 0; i < loopIDCount; i++) {
+				if (loopIDs[i].equals(loopID)) {
+					return i;
+				}
+			}
+			if (loopIDCount == loopIDs.length) {
+				loopIDs = Arrays.copyOf(loopIDs, loopIDCount << 1);
+			}
+			loopIDs[loopIDCount] = loopID;
+			return loopIDCount++;
+		}
+
+		private void ensureArena(int theLength) {
+			if (chars != null) {
+				if (length + theLength > chars.length) {
+					chars = Arrays.copyOf(chars, Math.max(chars.length << 1, length + theLength));
+				}
+			} else if (length + theLength > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + theLength));
+			}
+		}
+	}
+}
@@ -0,0 +1,503 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+
+public class X12Writer {
+
+/*
+	Counterpart of X12Reader. Segments are built element by element directly
+	in a reusable byte buffer with the separators of the ISA passed to
+	writeISA. Characters are written as raw 8-bit bytes, the same as
+	X12Reader in byte mode, unless the writer is given a charset that is not
+	single byte (UTF-8) - then the values are encoded with it. The
+	separators and tags are always written as single ASCII bytes, so only
+	ISO-8859-1, US-ASCII and UTF-8 are accepted.
+
+	The writer counts segments, transaction sets and functional groups as
+	they are written and remembers the ST02, GS06 and ISA13 control numbers,
+	so the SE, GE and IEA trailers are written by endTransactionSet, endGroup
+	and endInterchange with the correct counts.
+*/
+	private static final int BUFSIZE = 64 * 1024;
+	// Longest long plus sign
+	private static final int MAX_LONG_LENGTH = 20;
+
+	private OutputStream output;
+	private byte[] buf = new byte[BUFSIZE];
+	private int count;
+	private byte[] lineSeparator;
+	// Only for a charset that is not single byte, null for raw bytes
+	private CharsetEncoder encoder;
+
+	private byte elementSeparator;
+	private byte segmentSeparator;
+	private byte componentSeparator;
+	private byte repetitionSeparator;
+
+	// Segment being written, segmentStart is -1 when there is none
+	private int segmentStart = -1;
+	private int segmentTag;
+	private boolean inElement;
+
+	// Envelope state
+	private ISASegment currentISA;
+	private boolean inGroup;
+	private boolean inTransactionSet;
+	private int groupCount;
+	private int transactionSetCount;
+	private int segmentCount;
+	private byte[] groupControlNumber;
+	private byte[] transactionSetControlNumber;
+
+	public X12Writer(OutputStream output) {
+		this.output = output;
+	}
+
+	public X12Writer(OutputStream output, String lineSeparator) {
+		// lineSeparator is written after every segment separator (e.g. "\r\n")
+		this.output = output;
+		if (lineSeparator != null && lineSeparator.length() > 0) {
+			this.lineSeparator = new byte[lineSeparator.length()];
+			for (int i = 0; i < this.lineSeparator.length; i++) {
+				this.lineSeparator[i] = (byte) lineSeparator.charAt(i);
+			}
+		}
+	}
+
+	public X12Writer(OutputStream output, Charset charset) throws X12Exception {
+		this(output, null, charset);
+	}
+
+	public X12Writer(OutputStream output, String lineSeparator, Charset charset) throws X12Exception {
+		this(output, lineSeparator);
+		if (!X12Reader.isAsciiCompatible(charset)) {
+			throw new X12Exception("Charset not supported by X12Writer: " + charset.name());
+		}
+		if (!X12Reader.isSingleByte(charset)) {
+			encoder = charset.newEncoder();
+		}
+	}
+
+	public void flush() throws IOException {
+		// An open segment stays buffered
+		writeBuffer();
+		output.flush();
+	}
+
+	public void close() throws IOException {
+		if (output != null) {
+			flush();
+			output.close();
+			output = null;
+		}
+	}
+
+	public ISASegment getISA() {
+		return currentISA;
+	}
+
+	public void writeISA(ISASegment theISA) throws IOException, X12Exception {
+		if (currentISA != null) {
+			throw new X12Exception("X12 interchange not ended");
+		}
+
+		currentISA = theISA;
+		elementSeparator = (byte) theISA.getElementSeparator();
+		segmentSeparator = (byte) theISA.getSegmentSeparator();
+		componentSeparator = (byte) theISA.getComponementSeparator();
+		repetitionSeparator = theISA.hasRepetitionSeparator() ? (byte) theISA.getRepetitionSeparator() : 0;
+		groupCount = 0;
+
+		String theSegment = theISA.toString();
+		ensure(theSegment.length());
+		for (int i = 0; i < theSegment.length(); i++) {
+			buf[count++] = (byte) theSegment.charAt(i);
+		}
+		writeLineSeparator();
+	}
+
+	public void startSegment(CharSequence tag) throws IOException, X12Exception {
+		startSegment(X12Tag.valueOf(tag));
+	}
+
+	public void startSegment(int tagCode) throws IOException, X12Exception {
+		// Ends the open segment (if any) first
+		endSegment();
+
+		switch (tagCode) {
+		case X12Tag.NONE:
+			throw new X12Exception("Invalid X12 segment tag");
+		case X12Tag.ISA:
+			throw new X12Exception("Use writeISA to start an X12 interchange");
+		case X12Tag.SE:
+		case X12Tag.GE:
+		case X12Tag.IEA:
+			throw new X12Exception("X12 trailers are written by endTransactionSet, endGroup and endInterchange");
+		case X12Tag.GS:
+			if (inGroup) {
+				throw new X12Exception("X12 functional group not ended");
+			}
+			break;
+		case X12Tag.ST:
+			if (!inGroup) {
+				throw new X12Exception("X12 transaction set outside of a functional group");
+			}
+			if (inTransactionSet) {
+				throw new X12Exception("X12 transaction set not ended");
+			}
+			break;
+		}
+		if (currentISA == null) {
+			throw new X12Exception("X12 interchange not started");
+		}
+
+		ensure(3);
+		segmentStart = count;
+		segmentTag = tagCode;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			int c = (tagCode >>> shift) & 0xFF;
+			if (c != 0) {
+				buf[count++] = (byte) c;
+			}
+		}
+		inElement = false;
+	}
+
+	public void element(CharSequence value) throws IOException, X12Exception {
+		// A null or empty value writes an empty element
+		element(value, (char) 0);
+	}
+
+	void element(CharSequence value, char repSep) throws IOException, X12Exception {
+		// repSep separates repetitions within value, 0 when there are none
+		startElement();
+		if (value != null) {
+			write(value, (char) 0, repSep);
+		}
+	}
+
+	public void element(long value) throws IOException, X12Exception {
+		startElement();
+		ensure(MAX_LONG_LENGTH);
+		int start = count;
+		// Digits are produced from the negative value so Long.MIN_VALUE works
+		long v = value;
+		if (v >= 0) {
+			v = -v;
+		} else {
+			buf[count++] = '-';
+			start++;
+		}
+		do {
+			buf[count++] = (byte) ('0' - (v % 10));
+			v /= 10;
+		} while (v != 0);
+		reverse(start, count);
+	}
+
+	public void element(X12Decimal value) throws IOException, X12Exception {
+		// Written as the unscaled value with the decimal point placed by the
+		// scale (e.g. 12345 with a scale of 2 is "123.45", 5 is "0.05")
+		if (value == null) {
+			element((CharSequence) null);
+			return;
+		}
+		int scale = value.getScale();
+		if (scale <= 0) {
+			element(value.getUnscaledValue());
+			if (value.getUnscaledValue() != 0) {
+				ensure(-scale);
+				for (int i = scale; i < 0; i++) {
+					buf[count++] = '0';
+				}
+			}
+			return;
+		}
+
+		startElement();
+		ensure(MAX_LONG_LENGTH + scale + 2);
+		int start = count;
+		long v = value.getUnscaledValue();
+		if (v >= 0) {
+			v = -v;
+		} else {
+			buf[count++] = '-';
+			start++;
+		}
+		int digits = 0;
+		do {
+			if (digits == scale) {
+				buf[count++] = '.';
+			}
+			buf[count++] = (byte) ('0' - (v % 10));
+			v /= 10;
+			digits++;
+		} while (v != 0 || digits <= scale);
+		reverse(start, count);
+	}
+
+	public void component(CharSequence value) throws IOException, X12Exception {
+		// Adds a component to the current element - the element value is
+		// the first component (e.g. element("HC") then component("99213"))
+		component(value, (char) 0);
+	}
+
+	void component(CharSequence value, char repSep) throws IOException, X12Exception {
+		if (!inElement) {
+			throw new X12Exception("X12 component outside of an element");
+		}
+		ensure(1);
+		buf[count++] = componentSeparator;
+		if (value != null) {
+			write(value, (char) 0, repSep);
+		}
+	}
+
+	public void repetition(CharSequence value) throws IOException, X12Exception {
+		// Adds a repetition to the current element
+		if (!inElement) {
+			throw new X12Exception("X12 repetition outside of an element");
+		}
+		if (repetitionSeparator == 0) {
+			throw new X12Exception("X12 interchange has no repetition separator");
+		}
+		ensure(1);
+		buf[count++] = repetitionSeparator;
+		if (value != null) {
+			write(value, (char) 0, (char) 0);
+		}
+	}
+
+	public void writeSegment(X12Segment theSegment) throws IOException, X12Exception {
+		// Copies a segment (e.g. one read by X12Reader). Its component and
+		// repetition separators are changed to those of this interchange.
+		startSegment(theSegment.getTagCode());
+		int theCount = theSegment.getElementCount();
+		for (int i = 1; i < theCount; i++) {
+			startElement();
+			write(theSegment.getElementView(i), theSegment.getComponentSeparator(),
+					theSegment.getRepetitionSeparator());
+		}
+		endSegment();
+	}
+
+	public void endSegment() throws IOException, X12Exception {
+		if (segmentStart < 0) {
+			return;
+		}
+
+		// Trailing empty elements and components are not written
+		while (count > segmentStart && (buf[count - 1] == elementSeparator || buf[count - 1] == componentSeparator
+				|| (repetitionSeparator != 0 && buf[count - 1] == repetitionSeparator))) {
+			count--;
+		}
+
+		switch (segmentTag) {
+		case X12Tag.GS:
+			groupControlNumber = getElementBytes(6);
+			inGroup = true;
+			transactionSetCount = 0;
+			groupCount++;
+			break;
+		case X12Tag.ST:
+			transactionSetControlNumber = getElementBytes(2);
+			inTransactionSet = true;
+			segmentCount = 0;
+			transactionSetCount++;
+			break;
+		}
+		if (inTransactionSet) {
+			segmentCount++;
+		}
+
+		ensure(1);
+		buf[count++] = segmentSeparator;
+		segmentStart = -1;
+		writeLineSeparator();
+	}
+
+	public void endTransactionSet() throws IOException, X12Exception {
+		endSegment();
+		if (!inTransactionSet) {
+			throw new X12Exception("X12 transaction set not started");
+		}
+		// SE01 counts the ST and SE segments too
+		writeTrailer(X12Tag.SE, segmentCount + 1, transactionSetControlNumber);
+		inTransactionSet = false;
+	}
+
+	public void endGroup() throws IOException, X12Exception {
+		// Ends the open transaction set (if any) first
+		endSegment();
+		if (inTransactionSet) {
+			endTransactionSet();
+		}
+		if (!inGroup) {
+			throw new X12Exception("X12 functional group not started");
+		}
+		writeTrailer(X12Tag.GE, transactionSetCount, groupControlNumber);
+		inGroup = false;
+	}
+
+	public void endInterchange() throws IOException, X12Exception {
+		// Ends the open functional group (if any) first
+		endSegment();
+		if (inGroup) {
+			endGroup();
+		}
+		if (currentISA == null) {
+			throw new X12Exception("X12 interchange not started");
+		}
+		String theControlNumber = currentISA.getInterchangeControlNumber();
+		byte[] theBytes = new byte[theControlNumber.length()];
+		for (int i = 0; i < theBytes.length; i++) {
+			theBytes[i] = (byte) theControlNumber.charAt(i);
+		}
+		writeTrailer(X12Tag.IEA, groupCount, theBytes);
+		currentISA = null;
+	}
+
+	private void writeTrailer(int tagCode, int theCount, byte[] controlNumber) throws IOException, X12Exception {
+		ensure(3);
+		segmentStart = count;
+		segmentTag = tagCode;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			int c = (tagCode >>> shift) & 0xFF;
+			if (c != 0) {
+				buf[count++] = (byte) c;
+			}
+		}
+		inElement = false;
+		element(theCount);
+		startElement();
+		if (controlNumber != null) {
+			ensure(controlNumber.length);
+			System.arraycopy(controlNumber, 0, buf, count, controlNumber.length);
+			count += controlNumber.length;
+		}
+		endSegment();
+	}
+
+	private void startElement() throws IOException, X12Exception {
+		if (segmentStart < 0) {
+			throw new X12Exception("X12 element outside of a segment");
+		}
+		ensure(1);
+		buf[count++] = elementSeparator;
+		inElement = true;
+	}
+
+	private void write(CharSequence value, char compSep, char repSep) throws IOException, X12Exception {
+		// compSep and repSep are the separators of a copied segment, they
+		// are changed to ours. Anything else must not be a separator.
+		int length = value.length();
+		ensure(length);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			byte b;
+			if (c == compSep && compSep != 0) {
+				b = componentSeparator;
+			} else if (c == repSep && repSep != 0) {
+				if (repetitionSeparator == 0) {
+					throw new X12Exception("X12 interchange has no repetition separator");
+				}
+				b = repetitionSeparator;
+			} else if (c >= 0x80 && encoder != null) {
+				i = encode(value, i) - 1;
+				continue;
+			} else {
+				if (c > 0xFF) {
+					throw new X12Exception("Invalid X12 character");
+				}
+				b = (byte) c;
+				if (b == elementSeparator || b == segmentSeparator || b == componentSeparator
+						|| (b == repetitionSeparator && repetitionSeparator != 0)) {
+					throw new X12Exception("X12 element contains a separator");
+				}
+			}
+			buf[count++] = b;
+		}
+	}
+
+	private int encode(CharSequence value, int start) throws IOException, X12Exception {
+		// Encodes the run of non ASCII characters at start (none of them can
+		// be a separator), returns the end of the run
+		int end = start + 1;
+		while (end < value.length() && value.charAt(end) >= 0x80) {
+			end++;
+		}
+		// The rest of the value is already ensured
+		ensure((int) Math.ceil(encoder.maxBytesPerChar() * (end - start)) + value.length() - end);
+		ByteBuffer theBytes = ByteBuffer.wrap(buf, count, buf.length - count);
+		encoder.reset();
+		CoderResult theResult = encoder.encode(CharBuffer.wrap(value, start, end), theBytes, true);
+		if (!theResult.isError()) {
+			theResult = encoder.flush(theBytes);
+		}
+		if (theResult.isError()) {
+			throw new X12Exception("Invalid X12 character");
+		}
+		count = theBytes.position();
+		return end;
+	}
+
+	private byte[] getElementBytes(int index) {
+		// Element of the open segment, null when it is missing
+		int element = 0;
+		int start = segmentStart;
+		for (int i = segmentStart; i <= count; i++) {
+			if (i == count || buf[i] == elementSeparator) {
+				if (element == index) {
+					return Arrays.copyOfRange(buf, start, i);
+				}
+				element++;
+				start = i + 1;
+			}
+		}
+		return null;
+	}
+
+	private void writeLineSeparator() throws IOException {
+		if (lineSeparator != null) {
+			ensure(lineSeparator.length);
+			System.arraycopy(lineSeparator, 0, buf, count, lineSeparator.length);
+			count += lineSeparator.length;
+		}
+	}
+
+	private void reverse(int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		// Only whole segments are written out, the open one is moved to the
+		// front of the buffer
+		int end = (segmentStart < 0) ? count : segmentStart;
+		output.write(buf, 0, end);
+		System.arraycopy(buf, end, buf, 0, count - end);
+		count -= end;
+		if (segmentStart >= 0) {
+			segmentStart = 0;
+		}
+	}
+
+	private void ensure(int length) throws IOException {
+		if (count + length > buf.length) {
+			writeBuffer();
+			if (count + length > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + length));
+			}
+		}
+	}
+}
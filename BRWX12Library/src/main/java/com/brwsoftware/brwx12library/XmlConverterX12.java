@@ -0,0 +1,281 @@
+package com.brwsoftware.brwx12library;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+public class XmlConverterX12 {
+
+/*
+	Reverse of X12ConverterXml. Reads the XML it produces (generic or schema
+	based) with StAX and writes the X12 back out through an X12Writer, so
+	only the current segment is held in memory. Loop elements are only
+	structure and are skipped over. The SE, GE and IEA segments in the XML
+	are ignored - the trailers are written with recomputed counts.
+
+	The XML does not hold the element and segment separators, they are
+	passed to convert (by default '*' and '~'). The component and
+	repetition separators come from ISA16 and ISA11. The X12 is written in
+	the charset passed to convert (by default the platform charset, the
+	same as X12ConverterXml reads it) - ISO-8859-1, US-ASCII or UTF-8, the
+	charsets X12Writer accepts.
+*/
+	private static final char DEFAULT_ELEMENT_SEPARATOR = '*';
+	private static final char DEFAULT_SEGMENT_SEPARATOR = '~';
+	// Fixed widths of ISA01 - ISA16
+	private static final int[] ISA_WIDTHS = { 2, 10, 2, 10, 2, 15, 2, 15, 6, 4, 1, 5, 9, 1, 1, 1 };
+
+	private XMLInputFactory xmlInputFactory;
+	private XMLStreamReader xmlReader;
+	private X12Writer x12Writer;
+	private char elementSeparator;
+	private char segmentSeparator;
+	private char repetitionSeparator;
+	// Text of the current element, reused for every element
+	private final StringBuilder text = new StringBuilder();
+
+	public XmlConverterX12() {
+	}
+
+	public void convert(InputStream input, OutputStream output) throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, DEFAULT_ELEMENT_SEPARATOR, DEFAULT_SEGMENT_SEPARATOR, Charset.defaultCharset());
+	}
+
+	public void convert(InputStream input, OutputStream output, Charset charset)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, DEFAULT_ELEMENT_SEPARATOR, DEFAULT_SEGMENT_SEPARATOR, charset);
+	}
+
+	public void convert(InputStream input, OutputStream output, char elementSeparator, char segmentSeparator)
+			throws XMLStreamException, IOException, X12Exception {
+		convert(input, output, elementSeparator, segmentSeparator, Charset.defaultCharset());
+	}
+
+	public void convert(InputStream input, OutputStream output, char elementSeparator, char segmentSeparator,
+			Charset charset) throws XMLStreamException, IOException, X12Exception {
+		// The separators and tags are written as single bytes
+		if (!X12Reader.isAsciiCompatible(charset)) {
+			throw new X12Exception("Charset not supported by XmlConverterX12: " + charset.name());
+		}
+
+		// Ensure the factory
+		if (xmlInputFactory == null) {
+			xmlInputFactory = XMLInputFactory.newInstance();
+			xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		}
+
+		// Cache values
+		this.elementSeparator = elementSeparator;
+		this.segmentSeparator = segmentSeparator;
+
+		xmlReader = xmlInputFactory.createXMLStreamReader(input);
+		x12Writer = new X12Writer(output, charset);
+		try {
+			if (xmlReader.nextTag() != XMLStreamConstants.START_ELEMENT
+					|| xmlReader.getLocalName().compareToIgnoreCase("X12") != 0) {
+				throw new X12Exception("Unexpected XML element - not X12");
+			}
+			processChildren();
+			x12Writer.flush();
+		} finally {
+			xmlReader.close();
+			xmlReader = null;
+			x12Writer = null;
+		}
+	}
+
+	private void processChildren() throws XMLStreamException, IOException, X12Exception {
+		// Children of X12, InterchangeControl, FunctionalGroup, TransactionSet
+		// and Loop (through the matching end element)
+		while (xmlReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			String name = xmlReader.getLocalName();
+			if (name.compareToIgnoreCase("InterchangeControl") == 0) {
+				processChildren();
+				x12Writer.endInterchange();
+			} else if (name.compareToIgnoreCase("FunctionalGroup") == 0) {
+				processChildren();
+				x12Writer.endGroup();
+			} else if (name.compareToIgnoreCase("TransactionSet") == 0) {
+				processChildren();
+				x12Writer.endTransactionSet();
+			} else if (name.compareToIgnoreCase("Loop") == 0) {
+				processChildren();
+			} else {
+				processSegment(name);
+			}
+		}
+	}
+
+	private void processSegment(String name) throws XMLStreamException, IOException, X12Exception {
+		int tagCode = X12Tag.valueOf(name);
+		switch (tagCode) {
+		case X12Tag.NONE:
+			throw new X12Exception("Unexpected XML element " + name);
+		case X12Tag.ISA:
+			processSegmentISA(name);
+			return;
+		case X12Tag.SE:
+		case X12Tag.GE:
+		case X12Tag.IEA:
+			// Written by the X12Writer when the envelope ends
+			skipElement();
+			return;
+		}
+
+		x12Writer.startSegment(tagCode);
+		int next = 1;
+		while (xmlReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			int index = getElementIndex(name, xmlReader.getLocalName());
+			if (index < next) {
+				throw new X12Exception("Unexpected XML element " + xmlReader.getLocalName());
+			}
+			// Elements left out of the XML are empty
+			for (; next < index; next++) {
+				x12Writer.element(null, (char) 0);
+			}
+			processElement(name, index);
+			next++;
+		}
+		x12Writer.endSegment();
+	}
+
+	private void processSegmentISA(String name) throws XMLStreamException, IOException, X12Exception {
+		String[] theValues = new String[ISA_WIDTHS.length];
+		while (xmlReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			int index = getElementIndex(name, xmlReader.getLocalName());
+			if (index < 1 || index > ISA_WIDTHS.length) {
+				throw new X12Exception("Unexpected XML element " + xmlReader.getLocalName());
+			}
+			theValues[index - 1] = xmlReader.getElementText();
+		}
+
+		// The ISA is fixed width - shorter values are padded with spaces
+		char[] theSegment = new char[ISASegment.ISA_LENGTH];
+		theSegment[0] = 'I';
+		theSegment[1] = 'S';
+		theSegment[2] = 'A';
+		int pos = 3;
+		for (int i = 0; i < ISA_WIDTHS.length; i++) {
+			String theValue = (theValues[i] == null) ? "" : theValues[i];
+			if (theValue.length() > ISA_WIDTHS[i]) {
+				throw new X12Exception(String.format("Invalid ISA%02d length", i + 1));
+			}
+			theSegment[pos++] = elementSeparator;
+			for (int j = 0; j < ISA_WIDTHS[i]; j++) {
+				theSegment[pos++] = (j < theValue.length()) ? theValue.charAt(j) : ' ';
+			}
+		}
+		theSegment[pos] = segmentSeparator;
+
+		ISASegment theISA = new ISASegment(theSegment);
+		repetitionSeparator = theISA.hasRepetitionSeparator() ? theISA.getRepetitionSeparator() : 0;
+		x12Writer.writeISA(theISA);
+	}
+
+	private void processElement(String name, int index) throws XMLStreamException, IOException, X12Exception {
+		// Either text or SEGNN-NN component elements
+		text.setLength(0);
+		int next = 1;
+		while (true) {
+			int eventType = xmlReader.next();
+			if (eventType == XMLStreamConstants.END_ELEMENT) {
+				break;
+			}
+			switch (eventType) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				if (next == 1) {
+					text.append(xmlReader.getTextCharacters(), xmlReader.getTextStart(), xmlReader.getTextLength());
+				}
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				int component = getComponentIndex(name, index, xmlReader.getLocalName());
+				if (component < next) {
+					throw new X12Exception("Unexpected XML element " + xmlReader.getLocalName());
+				}
+				// Components left out of the XML are empty
+				for (; next < component; next++) {
+					writeComponent(next, null);
+				}
+				writeComponent(next, xmlReader.getElementText());
+				next++;
+				break;
+			}
+		}
+
+		if (next == 1) {
+			x12Writer.element(text, repetitionSeparator);
+		}
+	}
+
+	private void writeComponent(int component, CharSequence value) throws IOException, X12Exception {
+		// The first component is the element itself
+		if (component == 1) {
+			x12Writer.element(value, repetitionSeparator);
+		} else {
+			x12Writer.component(value, repetitionSeparator);
+		}
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int eventType = xmlReader.next();
+			if (eventType == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (eventType == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	private static int getElementIndex(String segment, String name) throws X12Exception {
+		// SEGNN
+		int index = -1;
+		if (name.length() > segment.length() && name.regionMatches(true, 0, segment, 0, segment.length())) {
+			index = parseIndex(name, segment.length(), name.length());
+		}
+		if (index < 1) {
+			throw new X12Exception("Unexpected XML element " + name);
+		}
+		return index;
+	}
+
+	private static int getComponentIndex(String segment, int index, String name) throws X12Exception {
+		// SEGNN-NN
+		int component = -1;
+		int dash = name.indexOf('-');
+		if (dash > segment.length() && name.regionMatches(true, 0, segment, 0, segment.length())
+				&& parseIndex(name, segment.length(), dash) == index) {
+			component = parseIndex(name, dash + 1, name.length());
+		}
+		if (component < 1) {
+			throw new X12Exception("Unexpected XML element " + name);
+		}
+		return component;
+	}
+
+	private static int parseIndex(String name, int start, int end) {
+		// -1 when not all digits
+		if (start >= end || end - start > 4) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = name.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+}